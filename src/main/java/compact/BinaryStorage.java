@@ -0,0 +1,627 @@
+package compact;
+
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Store the tf-idf matrix, the document and token indices, the document
+ * dates and the centroids in one binary file, as an alternative to the
+ * Java serialization of Storage/StorageInformation. Arrays are written and
+ * read as raw blocks through a FileChannel, no objects are created per
+ * non-zero.
+ *
+ * The file starts with a header: magic number, format version, the matrix
+ * size, and the offset and length in bytes of each block. Blocks start at
+ * multiples of 8 bytes. All numbers are little-endian.
+ *
+ * <pre>
+ * ROW_POINTERS      int[rows + 1]
+ * COLUMN_INDICES    int[non-zeros]
+ * VALUES            double[non-zeros]
+ * DOCUMENT_INDICES  int size, int number of bytes, int[size + 1] offsets, int[size] hashes, byte[] UTF-8 bytes
+ * TOKEN_INDICES     as DOCUMENT_INDICES
+ * DATES             int count, int[count] documents, padding, long[count] milliseconds
+ * CENTROIDS         int count, int[count + 1] pointers, padding, int[] column indices, padding, double[] values
+ * </pre>
+ *
+ * @author Patricia Fischer
+ */
+public class BinaryStorage {
+
+    static final int MAGIC = 0x5044544D; // "PDTM"
+
+    static final int VERSION = 1;
+
+    static final int ROW_POINTERS = 0;
+    static final int COLUMN_INDICES = 1;
+    static final int VALUES = 2;
+    static final int DOCUMENT_INDICES = 3;
+    static final int TOKEN_INDICES = 4;
+    static final int DATES = 5;
+    static final int CENTROIDS = 6;
+    private static final int NUM_OF_BLOCKS = 7;
+
+    // magic, version, rows, columns, non-zeros (long), then offset and length per block
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + NUM_OF_BLOCKS * 16;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    private final SparseRows rows;
+
+    private final StringIndex documentIndices;
+
+    private final StringIndex tokenIndices;
+
+    private final Map<Integer, Date> documentDates;
+
+    private final double[][] centroids;
+
+    private BinaryStorage(SparseRows rows, StringIndex documentIndices, StringIndex tokenIndices,
+                          Map<Integer, Date> documentDates, double[][] centroids) {
+        this.rows = rows;
+        this.documentIndices = documentIndices;
+        this.tokenIndices = tokenIndices;
+        this.documentDates = documentDates;
+        this.centroids = centroids;
+    }
+
+    /**
+     * Write the matrix and its indices to a file. The file is written next
+     * to the target and moved in place, so a file that is memory-mapped by
+     * readers is replaced instead of changed under them.
+     *
+     * @param file            The file
+     * @param rows            The tf-idf rows, e.g. TermDocumentMatrix.sparseRows()
+     * @param documentIndices The document indices
+     * @param tokenIndices    The token indices
+     * @param documentDates   The dates by document index
+     * @param centroids       The dense centroids, may be empty
+     * @throws IOException
+     */
+    public static void write(File file, SparseRows rows, StringIndex documentIndices, StringIndex tokenIndices,
+                             Map<Integer, Date> documentDates, double[][] centroids) throws IOException {
+        CompressedRows compressedRows = rows instanceof CompressedRows ? (CompressedRows) rows : CRSBuilder.copyOf(rows);
+        int numOfRows = compressedRows.rows();
+        int nnz = compressedRows.cardinality();
+
+        // Processes that have the file mapped keep the old file, truncating it in place would crash them
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            BlockWriter writer = new BlockWriter(channel, HEADER_SIZE);
+            long[] offsets = new long[NUM_OF_BLOCKS];
+            long[] lengths = new long[NUM_OF_BLOCKS];
+
+            offsets[ROW_POINTERS] = writer.position();
+            writer.putInts(compressedRows.rowPointers(), 0, numOfRows + 1);
+            lengths[ROW_POINTERS] = writer.align() - offsets[ROW_POINTERS];
+
+            offsets[COLUMN_INDICES] = writer.position();
+            writer.putInts(compressedRows.columnIndices(), 0, nnz);
+            lengths[COLUMN_INDICES] = writer.align() - offsets[COLUMN_INDICES];
+
+            offsets[VALUES] = writer.position();
+            writer.putDoubles(compressedRows.values(), 0, nnz);
+            lengths[VALUES] = writer.align() - offsets[VALUES];
+
+            offsets[DOCUMENT_INDICES] = writer.position();
+            writeIndex(writer, documentIndices);
+            lengths[DOCUMENT_INDICES] = writer.align() - offsets[DOCUMENT_INDICES];
+
+            offsets[TOKEN_INDICES] = writer.position();
+            writeIndex(writer, tokenIndices);
+            lengths[TOKEN_INDICES] = writer.align() - offsets[TOKEN_INDICES];
+
+            offsets[DATES] = writer.position();
+            writeDates(writer, documentDates);
+            lengths[DATES] = writer.align() - offsets[DATES];
+
+            offsets[CENTROIDS] = writer.position();
+            writeCentroids(writer, centroids);
+            lengths[CENTROIDS] = writer.align() - offsets[CENTROIDS];
+
+            writer.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(numOfRows).putInt(compressedRows.columns()).putLong(nnz);
+            for (int block = 0; block < NUM_OF_BLOCKS; block++) {
+                header.putLong(offsets[block]).putLong(lengths[block]);
+            }
+            header.flip();
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(true);
+        }
+
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        System.err.printf("Binary storage is saved in %s\n", file);
+    }
+
+    /**
+     * Read a file written by write().
+     *
+     * @param file The file
+     * @return The stored matrix and indices
+     * @throws IOException If the file is not a storage file of a supported version
+     */
+    public static BinaryStorage read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Header header = Header.read(channel);
+            BlockReader reader = new BlockReader(channel);
+
+            reader.seek(header.offset(ROW_POINTERS));
+            int[] rowPointers = reader.getInts(header.rows() + 1);
+
+            reader.seek(header.offset(COLUMN_INDICES));
+            int[] columnIndices = reader.getInts(header.cardinality());
+
+            reader.seek(header.offset(VALUES));
+            double[] values = reader.getDoubles(header.cardinality());
+
+            CompressedRows rows = new CompressedRows(header.rows(), header.columns(), rowPointers, columnIndices, values);
+            return readMetadata(reader, header, rows);
+        }
+    }
+
+    /**
+     * Read a file written by write(), memory-mapping the matrix rows instead
+     * of reading them, see MappedRows. The indices, dates and centroids are
+     * read onto the heap.
+     *
+     * @param file The file
+     * @return The stored matrix and indices
+     * @throws IOException If the file is not a storage file of a supported version
+     */
+    public static BinaryStorage map(File file) throws IOException {
+        MappedRows rows = MappedRows.map(file);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return readMetadata(new BlockReader(channel), Header.read(channel), rows);
+        }
+    }
+
+    /**
+     * Read the indices, dates and centroids of a file written by write(),
+     * but not its rows: getRows() returns null.
+     *
+     * @param file The file
+     * @return The stored indices
+     * @throws IOException If the file is not a storage file of a supported version
+     */
+    static BinaryStorage readMetadata(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return readMetadata(new BlockReader(channel), Header.read(channel), null);
+        }
+    }
+
+    private static BinaryStorage readMetadata(BlockReader reader, Header header, SparseRows rows) throws IOException {
+        reader.seek(header.offset(DOCUMENT_INDICES));
+        StringIndex documentIndices = readIndex(reader);
+
+        reader.seek(header.offset(TOKEN_INDICES));
+        StringIndex tokenIndices = readIndex(reader);
+
+        reader.seek(header.offset(DATES));
+        Map<Integer, Date> documentDates = readDates(reader);
+
+        reader.seek(header.offset(CENTROIDS));
+        double[][] centroids = readCentroids(reader, header.columns());
+
+        return new BinaryStorage(rows, documentIndices, tokenIndices, documentDates, centroids);
+    }
+
+    /**
+     * @return The tf-idf rows, e.g. for TermDocumentMatrix.setRows()
+     */
+    public SparseRows getRows() {
+        return rows;
+    }
+
+    public StringIndex getDocumentIndices() {
+        return documentIndices;
+    }
+
+    public StringIndex getTokenIndices() {
+        return tokenIndices;
+    }
+
+    public Map<Integer, Date> getDocumentDates() {
+        return documentDates;
+    }
+
+    public double[][] getCentroids() {
+        return centroids;
+    }
+
+    static void writeIndex(BlockWriter writer, StringIndex index) throws IOException {
+        int size = index.size();
+        int numOfBytes = index.offsets()[size];
+        writer.putInt(size);
+        writer.putInt(numOfBytes);
+        writer.putInts(index.offsets(), 0, size + 1);
+        writer.putInts(index.hashes(), 0, size);
+        writer.putBytes(index.bytes(), 0, numOfBytes);
+    }
+
+    static StringIndex readIndex(BlockReader reader) throws IOException {
+        int size = reader.getInt();
+        int numOfBytes = reader.getInt();
+        int[] offsets = reader.getInts(size + 1);
+        int[] hashes = reader.getInts(size);
+        byte[] bytes = reader.getBytes(numOfBytes);
+        return StringIndex.fromArrays(size, bytes, offsets, hashes);
+    }
+
+    private static void writeDates(BlockWriter writer, Map<Integer, Date> dates) throws IOException {
+        int[] docs = new int[dates.size()];
+        long[] millis = new long[dates.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Date> entry : dates.entrySet()) {
+            docs[i] = entry.getKey();
+            millis[i] = entry.getValue() == null ? NO_DATE : entry.getValue().getTime();
+            i++;
+        }
+
+        writer.putInt(docs.length);
+        writer.putInts(docs, 0, docs.length);
+        writer.align();
+        writer.putLongs(millis, 0, millis.length);
+    }
+
+    private static Map<Integer, Date> readDates(BlockReader reader) throws IOException {
+        int count = reader.getInt();
+        int[] docs = reader.getInts(count);
+        reader.align();
+        long[] millis = reader.getLongs(count);
+
+        Map<Integer, Date> dates = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            dates.put(docs[i], millis[i] == NO_DATE ? null : new Date(millis[i]));
+        }
+        return dates;
+    }
+
+    static void writeCentroids(BlockWriter writer, double[][] centroids) throws IOException {
+        CRSBuilder builder = new CRSBuilder();
+        int columns = 0;
+        if (centroids != null) {
+            for (double[] centroid : centroids) {
+                builder.addDenseRow(centroid);
+                columns = centroid.length;
+            }
+        }
+        CompressedRows rows = builder.build(columns);
+
+        writer.putInt(rows.rows());
+        writer.putInts(rows.rowPointers(), 0, rows.rows() + 1);
+        writer.align();
+        writer.putInts(rows.columnIndices(), 0, rows.cardinality());
+        writer.align();
+        writer.putDoubles(rows.values(), 0, rows.cardinality());
+    }
+
+    static double[][] readCentroids(BlockReader reader, int columns) throws IOException {
+        int count = reader.getInt();
+        int[] pointers = reader.getInts(count + 1);
+        reader.align();
+        int[] columnIndices = reader.getInts(pointers[count]);
+        reader.align();
+        double[] values = reader.getDoubles(pointers[count]);
+
+        double[][] centroids = new double[count][columns];
+        for (int i = 0; i < count; i++) {
+            for (int pos = pointers[i]; pos < pointers[i + 1]; pos++) {
+                centroids[i][columnIndices[pos]] = values[pos];
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * The header of a storage file.
+     */
+    static class Header {
+        private final int rows;
+        private final int columns;
+        private final long cardinality;
+        private final long[] offsets;
+        private final long[] lengths;
+
+        private Header(int rows, int columns, long cardinality, long[] offsets, long[] lengths) {
+            this.rows = rows;
+            this.columns = columns;
+            this.cardinality = cardinality;
+            this.offsets = offsets;
+            this.lengths = lengths;
+        }
+
+        static Header read(FileChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(0);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Storage file is shorter than its header");
+                }
+            }
+            buffer.flip();
+
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a binary storage file");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported binary storage version %d, expected %d", version, VERSION));
+            }
+
+            int rows = buffer.getInt();
+            int columns = buffer.getInt();
+            long cardinality = buffer.getLong();
+            long[] offsets = new long[NUM_OF_BLOCKS];
+            long[] lengths = new long[NUM_OF_BLOCKS];
+            for (int block = 0; block < NUM_OF_BLOCKS; block++) {
+                offsets[block] = buffer.getLong();
+                lengths[block] = buffer.getLong();
+            }
+
+            // Blocks are mapped by MappedRows, accessing a mapping beyond the end of the file crashes the JVM
+            if (rows < 0 || columns < 0 || cardinality < 0) {
+                throw new IOException(String.format("Invalid matrix size in storage file: %d x %d, %d non-zeros",
+                        rows, columns, cardinality));
+            }
+            long size = channel.size();
+            for (int block = 0; block < NUM_OF_BLOCKS; block++) {
+                if (offsets[block] < HEADER_SIZE || lengths[block] < 0 || offsets[block] > size - lengths[block]) {
+                    throw new IOException(String.format("Block %d at offset %d with length %d exceeds the storage file of %d bytes",
+                            block, offsets[block], lengths[block], size));
+                }
+            }
+            checkBlockLength(ROW_POINTERS, lengths, 4L * (rows + 1));
+            checkBlockLength(COLUMN_INDICES, lengths, 4L * cardinality);
+            checkBlockLength(VALUES, lengths, 8L * cardinality);
+
+            return new Header(rows, columns, cardinality, offsets, lengths);
+        }
+
+        private static void checkBlockLength(int block, long[] lengths, long expected) throws IOException {
+            if (lengths[block] < expected) {
+                throw new IOException(String.format("Block %d has %d bytes, the matrix size needs %d",
+                        block, lengths[block], expected));
+            }
+        }
+
+        int rows() {
+            return rows;
+        }
+
+        int columns() {
+            return columns;
+        }
+
+        int cardinality() {
+            Preconditions.checkState(cardinality <= Integer.MAX_VALUE,
+                    String.format("Too many non-zeros for arrays: %d", cardinality));
+            return (int) cardinality;
+        }
+
+        long offset(int block) {
+            return offsets[block];
+        }
+
+        long length(int block) {
+            return lengths[block];
+        }
+    }
+
+    /**
+     * Writes primitive arrays to a channel through a buffer.
+     */
+    static class BlockWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long position;
+
+        BlockWriter(FileChannel channel, long position) throws IOException {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            this.position = position;
+            channel.position(position);
+        }
+
+        long position() {
+            return position;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Pad with zeros to a multiple of 8 bytes.
+         *
+         * @return The position after the padding
+         */
+        long align() throws IOException {
+            while ((position & 7) != 0) {
+                ensure(1);
+                buffer.put((byte) 0);
+                position++;
+            }
+            return position;
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+            position += 4;
+        }
+
+        void putInts(int[] values, int from, int length) throws IOException {
+            for (int i = from; i < from + length; ) {
+                ensure(4);
+                int n = Math.min(from + length - i, buffer.remaining() / 4);
+                buffer.asIntBuffer().put(values, i, n);
+                buffer.position(buffer.position() + 4 * n);
+                i += n;
+            }
+            position += 4L * length;
+        }
+
+        void putLongs(long[] values, int from, int length) throws IOException {
+            for (int i = from; i < from + length; ) {
+                ensure(8);
+                int n = Math.min(from + length - i, buffer.remaining() / 8);
+                buffer.asLongBuffer().put(values, i, n);
+                buffer.position(buffer.position() + 8 * n);
+                i += n;
+            }
+            position += 8L * length;
+        }
+
+        void putDoubles(double[] values, int from, int length) throws IOException {
+            for (int i = from; i < from + length; ) {
+                ensure(8);
+                int n = Math.min(from + length - i, buffer.remaining() / 8);
+                buffer.asDoubleBuffer().put(values, i, n);
+                buffer.position(buffer.position() + 8 * n);
+                i += n;
+            }
+            position += 8L * length;
+        }
+
+        void putBytes(byte[] values, int from, int length) throws IOException {
+            for (int i = from; i < from + length; ) {
+                ensure(1);
+                int n = Math.min(from + length - i, buffer.remaining());
+                buffer.put(values, i, n);
+                i += n;
+            }
+            position += length;
+        }
+    }
+
+    /**
+     * Reads primitive arrays from a channel through a buffer.
+     */
+    static class BlockReader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long position;
+
+        BlockReader(FileChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            this.buffer.limit(0);
+        }
+
+        void seek(long position) throws IOException {
+            this.position = position;
+            channel.position(position);
+            buffer.clear().limit(0);
+        }
+
+        /**
+         * Make at least the given number of bytes available in the buffer.
+         */
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Unexpected end of storage file");
+                }
+            }
+            buffer.flip();
+        }
+
+        void align() throws IOException {
+            int padding = (int) (-position & 7);
+            ensure(padding);
+            buffer.position(buffer.position() + padding);
+            position += padding;
+        }
+
+        int getInt() throws IOException {
+            ensure(4);
+            position += 4;
+            return buffer.getInt();
+        }
+
+        int[] getInts(int length) throws IOException {
+            int[] values = new int[length];
+            for (int i = 0; i < length; ) {
+                ensure(4);
+                int n = Math.min(length - i, buffer.remaining() / 4);
+                buffer.asIntBuffer().get(values, i, n);
+                buffer.position(buffer.position() + 4 * n);
+                i += n;
+            }
+            position += 4L * length;
+            return values;
+        }
+
+        long[] getLongs(int length) throws IOException {
+            long[] values = new long[length];
+            for (int i = 0; i < length; ) {
+                ensure(8);
+                int n = Math.min(length - i, buffer.remaining() / 8);
+                buffer.asLongBuffer().get(values, i, n);
+                buffer.position(buffer.position() + 8 * n);
+                i += n;
+            }
+            position += 8L * length;
+            return values;
+        }
+
+        double[] getDoubles(int length) throws IOException {
+            double[] values = new double[length];
+            for (int i = 0; i < length; ) {
+                ensure(8);
+                int n = Math.min(length - i, buffer.remaining() / 8);
+                buffer.asDoubleBuffer().get(values, i, n);
+                buffer.position(buffer.position() + 8 * n);
+                i += n;
+            }
+            position += 8L * length;
+            return values;
+        }
+
+        byte[] getBytes(int length) throws IOException {
+            byte[] values = new byte[length];
+            for (int i = 0; i < length; ) {
+                ensure(1);
+                int n = Math.min(length - i, buffer.remaining());
+                buffer.get(values, i, n);
+                i += n;
+            }
+            position += length;
+            return values;
+        }
+    }
+}
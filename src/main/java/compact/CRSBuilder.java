@@ -0,0 +1,177 @@
+package compact;
+
+import java.util.Arrays;
+import org.la4j.iterator.RowMajorMatrixIterator;
+import org.la4j.matrix.SparseMatrix;
+
+/**
+ * Build compressed row storage row by row. The column indices and values of
+ * each row are appended to flat primitive arrays, so that building a matrix
+ * takes linear time, unlike setting the cells of a CRSMatrix one by one.
+ *
+ * @author Patricia Fischer
+ */
+public class CRSBuilder {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int[] rowPointers;
+
+    private int[] columnIndices;
+
+    private double[] values;
+
+    private int rows;
+
+    public CRSBuilder() {
+        rowPointers = new int[INITIAL_CAPACITY + 1];
+        columnIndices = new int[INITIAL_CAPACITY];
+        values = new double[INITIAL_CAPACITY];
+        rows = 0;
+    }
+
+    /**
+     * Append a row.
+     *
+     * @param columns The column indices of the non-zeros, in ascending order
+     * @param vals    The values of the non-zeros
+     * @param length  The number of non-zeros
+     */
+    public void addRow(int[] columns, double[] vals, int length) {
+        int start = rowPointers[rows];
+        ensureCapacity(start + length);
+
+        for (int i = 0; i < length; i++) {
+            if (i > 0 && columns[i] <= columns[i - 1]) {
+                throw new IllegalArgumentException(String.format("Column indices of row %d are not sorted", rows));
+            }
+            columnIndices[start + i] = columns[i];
+            values[start + i] = vals[i];
+        }
+
+        if (rows + 1 == rowPointers.length - 1) {
+            rowPointers = Arrays.copyOf(rowPointers, 2 * rowPointers.length - 1);
+        }
+        rowPointers[++rows] = start + length;
+    }
+
+    /**
+     * Append the non-zeros of a dense vector as a row.
+     *
+     * @param vector The vector
+     */
+    public void addDenseRow(double[] vector) {
+        int length = 0;
+        for (double value : vector) {
+            if (value != 0) {
+                length++;
+            }
+        }
+
+        int start = rowPointers[rows];
+        ensureCapacity(start + length);
+
+        int k = start;
+        for (int j = 0; j < vector.length; j++) {
+            if (vector[j] != 0) {
+                columnIndices[k] = j;
+                values[k] = vector[j];
+                k++;
+            }
+        }
+
+        if (rows + 1 == rowPointers.length - 1) {
+            rowPointers = Arrays.copyOf(rowPointers, 2 * rowPointers.length - 1);
+        }
+        rowPointers[++rows] = start + length;
+    }
+
+    /**
+     * @return The number of rows added so far
+     */
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * @param numOfColumns The number of columns of the matrix
+     * @return The rows added so far
+     */
+    public CompressedRows build(int numOfColumns) {
+        int cardinality = rowPointers[rows];
+        return new CompressedRows(rows, numOfColumns, Arrays.copyOf(rowPointers, rows + 1),
+                Arrays.copyOf(columnIndices, cardinality), Arrays.copyOf(values, cardinality));
+    }
+
+    /**
+     * Copy rows into compressed row storage.
+     *
+     * @param rows The rows
+     * @return The copied rows
+     */
+    public static CompressedRows copyOf(SparseRows rows) {
+        CRSBuilder builder = new CRSBuilder();
+        builder.ensureCapacity(rows.cardinality());
+
+        int[] columns = new int[0];
+        double[] vals = new double[0];
+        for (int row = 0; row < rows.rows(); row++) {
+            int length = rows.rowEnd(row) - rows.rowStart(row);
+            if (columns.length < length) {
+                columns = new int[length];
+                vals = new double[length];
+            }
+            for (int i = 0; i < length; i++) {
+                columns[i] = rows.columnIndex(rows.rowStart(row) + i);
+                vals[i] = rows.value(rows.rowStart(row) + i);
+            }
+            builder.addRow(columns, vals, length);
+        }
+
+        return builder.build(rows.columns());
+    }
+
+    /**
+     * Copy the non-zeros of a la4j matrix.
+     *
+     * @param matrix The matrix
+     * @return The rows of the matrix
+     */
+    public static CompressedRows fromMatrix(SparseMatrix matrix) {
+        CRSBuilder builder = new CRSBuilder();
+        builder.ensureCapacity(matrix.cardinality());
+
+        int[] columns = new int[matrix.columns()];
+        double[] vals = new double[matrix.columns()];
+        int length = 0;
+        int row = 0;
+
+        RowMajorMatrixIterator iter = matrix.nonZeroRowMajorIterator();
+        while (iter.hasNext()) {
+            double val = iter.next();
+            while (row < iter.rowIndex()) {
+                builder.addRow(columns, vals, length);
+                length = 0;
+                row++;
+            }
+            columns[length] = iter.columnIndex();
+            vals[length] = val;
+            length++;
+        }
+        while (row < matrix.rows()) {
+            builder.addRow(columns, vals, length);
+            length = 0;
+            row++;
+        }
+
+        return builder.build(matrix.columns());
+    }
+
+    private void ensureCapacity(int cardinality) {
+        if (cardinality > columnIndices.length) {
+            int capacity = Math.max(cardinality, columnIndices.length + (columnIndices.length >> 1));
+            columnIndices = Arrays.copyOf(columnIndices, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package compact;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * Inverted index from terms to the centroids with a non-zero weight for the
+ * term. The dot products of a document with all centroids are accumulated
+ * by walking the postings of the non-zero terms of the document only, so
+ * the work is proportional to the overlap of the document with the
+ * centroids instead of numOfClusters x the non-zeros of the document.
+ *
+ * The postings are stored like compressed rows, one row per term.
+ *
+ * Centroids are means of many documents and have non-zero weights for most
+ * terms, so the exact index holds close to numOfCentroids x vocabulary size
+ * postings, as much as the dense centroids themselves. With a term limit
+ * only the terms with the largest absolute weights of each centroid are
+ * indexed, e.g. 1000 terms cap the index at 1000 x numOfCentroids postings.
+ * The dot products are then approximations: for non-negative tf-idf vectors
+ * they underestimate the similarity by the weight of the dropped terms, and
+ * a document can be assigned to another centroid than with the dense
+ * centroids. The limit keeps most of the norm of a centroid, as the weights
+ * of the dropped terms are the smallest ones.
+ *
+ * @author Patricia Fischer
+ */
+public class CentroidIndex {
+
+    private final int numOfCentroids;
+
+    private final int[] termStarts;  // vocabulary size + 1 entries
+
+    private final int[] centroidIndices;
+
+    private final double[] weights;
+
+    /**
+     * Index all non-zero weights of the centroids.
+     *
+     * @param centroids The dense centroids, numOfCentroids x vocabulary size
+     * @param threads   The number of threads used to build the index
+     */
+    public CentroidIndex(double[][] centroids, int threads) {
+        this(centroids, 0, threads);
+    }
+
+    /**
+     * Index the non-zero weights of the centroids, at most maxTerms per
+     * centroid. Of equal weights the lower term is kept.
+     *
+     * @param centroids The dense centroids, numOfCentroids x vocabulary size
+     * @param maxTerms  The number of terms with the largest absolute weights
+     *                  kept per centroid, 0 to keep all terms
+     * @param threads   The number of threads used to build the index
+     */
+    public CentroidIndex(double[][] centroids, int maxTerms, int threads) {
+        Preconditions.checkArgument(maxTerms >= 0, String.format("Term limit should not be negative, is %d", maxTerms));
+
+        this.numOfCentroids = centroids.length;
+        int vectorLength = centroids.length == 0 ? 0 : centroids[0].length;
+
+        // The smallest absolute weight and its term that are kept per centroid
+        double[] minWeights = new double[centroids.length];
+        int[] minTerms = new int[centroids.length];
+        Arrays.fill(minTerms, -1);
+        if (maxTerms > 0 && maxTerms < vectorLength) {
+            ParallelUtils.forEachRange(centroids.length, threads, (from, to) -> {
+                TopScores top = new TopScores(maxTerms);
+                for (int c = from; c < to; c++) {
+                    top.clear();
+                    double[] centroid = centroids[c];
+                    for (int term = 0; term < vectorLength; term++) {
+                        if (centroid[term] != 0) {
+                            top.add(term, Math.abs(centroid[term]));
+                        }
+                    }
+                    if (top.size() == maxTerms) {
+                        int[] terms = top.ids();
+                        minTerms[c] = terms[maxTerms - 1];
+                        minWeights[c] = Math.abs(centroid[minTerms[c]]);
+                    }
+                }
+            });
+        }
+
+        // Count the postings per term, each thread scans the centroids for a range of terms
+        termStarts = new int[vectorLength + 1];
+        ParallelUtils.forEachRange(vectorLength, threads, (from, to) -> {
+            for (int c = 0; c < centroids.length; c++) {
+                double[] centroid = centroids[c];
+                for (int term = from; term < to; term++) {
+                    if (keep(centroid[term], term, minWeights[c], minTerms[c])) {
+                        termStarts[term + 1]++;
+                    }
+                }
+            }
+        });
+        for (int term = 0; term < vectorLength; term++) {
+            termStarts[term + 1] += termStarts[term];
+        }
+
+        // Postings are in centroid order, since centroids are scanned in order
+        centroidIndices = new int[termStarts[vectorLength]];
+        weights = new double[termStarts[vectorLength]];
+        ParallelUtils.forEachRange(vectorLength, threads, (from, to) -> {
+            int[] next = new int[to - from];
+            System.arraycopy(termStarts, from, next, 0, to - from);
+            for (int c = 0; c < centroids.length; c++) {
+                double[] centroid = centroids[c];
+                for (int term = from; term < to; term++) {
+                    if (keep(centroid[term], term, minWeights[c], minTerms[c])) {
+                        int pos = next[term - from]++;
+                        centroidIndices[pos] = c;
+                        weights[pos] = centroid[term];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return True if the weight is non-zero and not smaller than the smallest weight kept
+     */
+    private static boolean keep(double weight, int term, double minWeight, int minTerm) {
+        if (weight == 0) {
+            return false;
+        }
+        double abs = Math.abs(weight);
+        return abs > minWeight || (abs == minWeight && term <= minTerm);
+    }
+
+    /**
+     * @return The number of centroids
+     */
+    public int size() {
+        return numOfCentroids;
+    }
+
+    /**
+     * @return The number of non-zero centroid weights
+     */
+    public int cardinality() {
+        return weights.length;
+    }
+
+    /**
+     * Compute the dot products of a document with all centroids.
+     *
+     * @param rows        The document vectors
+     * @param row         The document
+     * @param dotProducts Stores the dot product with each centroid, at least numOfCentroids entries
+     */
+    public void dotProducts(SparseRows rows, int row, double[] dotProducts) {
+        Arrays.fill(dotProducts, 0, numOfCentroids, 0);
+        for (int pos = rows.rowStart(row); pos < rows.rowEnd(row); pos++) {
+            int term = rows.columnIndex(pos);
+            double value = rows.value(pos);
+            for (int posting = termStarts[term]; posting < termStarts[term + 1]; posting++) {
+                dotProducts[centroidIndices[posting]] += value * weights[posting];
+            }
+        }
+    }
+
+    /**
+     * Compute the dot products of a buffered document with all centroids.
+     *
+     * @param row         The document
+     * @param dotProducts Stores the dot product with each centroid, at least numOfCentroids entries
+     */
+    public void dotProducts(RowBuffer row, double[] dotProducts) {
+        Arrays.fill(dotProducts, 0, numOfCentroids, 0);
+        int[] columns = row.columns();
+        double[] values = row.values();
+        for (int i = 0; i < row.size(); i++) {
+            int term = columns[i];
+            double value = values[i];
+            for (int posting = termStarts[term]; posting < termStarts[term + 1]; posting++) {
+                dotProducts[centroidIndices[posting]] += value * weights[posting];
+            }
+        }
+    }
+}
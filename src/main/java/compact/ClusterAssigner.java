@@ -0,0 +1,271 @@
+package compact;
+
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Assign new sections to the clusters of an earlier clustering, without
+ * clustering again. A section is vectorized with the frozen vocabulary and
+ * idf weights of the clustered corpus and compared with the centroids:
+ * with the dense centroids of KMeansClustering by cosine similarity, or
+ * with the bit centroids of KMeansHashClustering by Hamming distance. The
+ * assignments are the same as those of clusters() of the clusterings.
+ *
+ * Dense centroids are compared through a CentroidIndex, so the cost of an
+ * assignment is proportional to the overlap of the section with the
+ * centroids. Terms that are not in the frozen vocabulary are skipped, and
+ * terms that are not in the centroids count for the norm of the section only.
+ *
+ * An assigner reuses its buffers and is not thread-safe, use one assigner
+ * per thread. The vocabulary, idf weights and centroids are saved with
+ * write() and loaded with read().
+ *
+ * <pre>
+ * int magic, int version, int type, int number of centroids
+ * vocabulary  as BinaryStorage.TOKEN_INDICES
+ * padding, double[vocabulary size] idf weights
+ * DENSE:      int columns, centroids as BinaryStorage.CENTROIDS
+ * HASHED:     int bits, int vector length, long seed, long[centroids x words] centroid hashes
+ * </pre>
+ *
+ * @author Patricia Fischer
+ */
+public class ClusterAssigner {
+
+    static final int MAGIC = 0x50445443; // "PDTC"
+
+    static final int VERSION = 1;
+
+    private static final int DENSE = 0;
+
+    private static final int HASHED = 1;
+
+    private final SectionVectorizer vectorizer;
+
+    private final int numOfCentroids;
+
+    private final int vectorLength;  // length of the centroids, at most the vocabulary size
+
+    private final double[][] centroids;
+
+    private final CentroidIndex index;
+
+    private final RandomProjectionHash hash;
+
+    private final long[] centroidHashes;
+
+    private final int[] rowPointers;  // buffers of the section vector
+
+    private int[] columns;
+
+    private double[] values;
+
+    private final double[] dotProducts;
+
+    private final double[] accumulators;
+
+    private final long[] sectionHash;
+
+    /**
+     * Assign sections by cosine similarity to dense centroids.
+     *
+     * @param vectorizer The vectorizer with the vocabulary and idf weights of the clustered documents
+     * @param centroids  The unit length centroids, e.g. of KMeansClustering.centroids()
+     */
+    public ClusterAssigner(SectionVectorizer vectorizer, double[][] centroids) {
+        this(vectorizer, centroids.length, centroids.length == 0 ? 0 : centroids[0].length, centroids, null, null);
+    }
+
+    /**
+     * Assign sections by Hamming distance to the hashes of centroids.
+     *
+     * @param vectorizer The vectorizer with the vocabulary and idf weights of the clustered documents
+     * @param hash       The hash function of the clustered documents
+     * @param centroids  The centroid hashes, e.g. of KMeansHashClustering.centroids()
+     */
+    public ClusterAssigner(SectionVectorizer vectorizer, RandomProjectionHash hash, long[] centroids) {
+        this(vectorizer, centroids.length / hash.words(), hash.vectorLength(), null, hash, centroids);
+        Preconditions.checkArgument(centroids.length % hash.words() == 0,
+                String.format("Centroid hashes should be multiples of %d longs, have %d", hash.words(), centroids.length));
+    }
+
+    private ClusterAssigner(SectionVectorizer vectorizer, int numOfCentroids, int vectorLength, double[][] centroids,
+                            RandomProjectionHash hash, long[] centroidHashes) {
+        Preconditions.checkArgument(numOfCentroids > 0, "There should be at least one centroid");
+        Preconditions.checkArgument(vectorLength <= vectorizer.columns(),
+                String.format("Centroids should have at most %d columns, have %d", vectorizer.columns(), vectorLength));
+
+        this.vectorizer = vectorizer;
+        this.numOfCentroids = numOfCentroids;
+        this.vectorLength = vectorLength;
+        this.centroids = centroids;
+        this.index = centroids == null ? null : new CentroidIndex(centroids, 1);
+        this.hash = hash;
+        this.centroidHashes = centroidHashes;
+        this.rowPointers = new int[2];
+        this.columns = new int[0];
+        this.values = new double[0];
+        this.dotProducts = new double[numOfCentroids];
+        this.accumulators = hash == null ? null : new double[hash.words() << 6];
+        this.sectionHash = hash == null ? null : new long[hash.words()];
+    }
+
+    /**
+     * @return The number of centroids
+     */
+    public int size() {
+        return numOfCentroids;
+    }
+
+    /**
+     * Assign a section to the closest centroid. Of equally close centroids
+     * the first one is chosen.
+     *
+     * @param wordFrequencies The term frequencies of the section
+     * @return The cluster of the section and its similarity to the centroid
+     */
+    public ClusterAssignment assign(Map<String, Integer> wordFrequencies) {
+        int length = wordFrequencies.size();
+        if (columns.length < length) {
+            columns = new int[length];
+            values = new double[length];
+        }
+        int nnz = vectorizer.vectorize(wordFrequencies, columns, values);
+
+        double sum = 0;
+        for (int i = 0; i < nnz; i++) {
+            sum += values[i] * values[i];
+        }
+        double inverseNorm = sum > 0 ? 1 / Math.sqrt(sum) : 0;
+
+        // Columns are sorted, drop terms which were added to the vocabulary after clustering
+        while (nnz > 0 && columns[nnz - 1] >= vectorLength) {
+            nnz--;
+        }
+        rowPointers[1] = nnz;
+        SparseRows section = new CompressedRows(1, vectorLength, rowPointers, columns, values);
+
+        return index != null ? assignDense(section, inverseNorm) : assignHashed(section);
+    }
+
+    private ClusterAssignment assignDense(SparseRows section, double inverseNorm) {
+        index.dotProducts(section, 0, dotProducts);
+
+        double maximum = -Double.MAX_VALUE;
+        int closest = -1;
+        for (int i = 0; i < numOfCentroids; i++) {
+            double similarity = dotProducts[i] * inverseNorm;
+            if (similarity > maximum) {
+                maximum = similarity;
+                closest = i;
+            }
+        }
+
+        return new ClusterAssignment(closest, maximum);
+    }
+
+    private ClusterAssignment assignHashed(SparseRows section) {
+        hash.hashRow(section, 0, accumulators, sectionHash, 0);
+
+        int words = sectionHash.length;
+        int minDistance = Integer.MAX_VALUE;
+        int closest = 0;
+        for (int i = 0; i < numOfCentroids; i++) {
+            int distance = HashedDocuments.distance(sectionHash, 0, centroidHashes, i * words, words);
+            if (distance < minDistance) {
+                minDistance = distance;
+                closest = i;
+            }
+        }
+
+        return new ClusterAssignment(closest, 1 - (double) minDistance / hash.bits());
+    }
+
+    /**
+     * Save the vocabulary, idf weights and centroids.
+     *
+     * @param file The file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        double[] idfs = vectorizer.idfs();
+        StringIndex tokenIndices = vectorizer.tokenIndices();
+        if (tokenIndices.size() > idfs.length) {
+            // The vocabulary has grown since the vectorizer was created
+            StringIndex frozen = new StringIndex();
+            for (int token = 0; token < idfs.length; token++) {
+                frozen.add(tokenIndices.string(token));
+            }
+            tokenIndices = frozen;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            BinaryStorage.BlockWriter writer = new BinaryStorage.BlockWriter(channel, 0);
+            writer.putInt(MAGIC);
+            writer.putInt(VERSION);
+            writer.putInt(index != null ? DENSE : HASHED);
+            writer.putInt(numOfCentroids);
+            BinaryStorage.writeIndex(writer, tokenIndices);
+            writer.align();
+            writer.putDoubles(idfs, 0, idfs.length);
+
+            if (index != null) {
+                writer.putInt(vectorLength);
+                BinaryStorage.writeCentroids(writer, centroids);
+            } else {
+                writer.putInt(hash.bits());
+                writer.putInt(vectorLength);
+                writer.putLongs(new long[]{hash.seed()}, 0, 1);
+                writer.putLongs(centroidHashes, 0, centroidHashes.length);
+            }
+            writer.flush();
+        }
+    }
+
+    /**
+     * Load an assigner saved with write().
+     *
+     * @param file The file
+     * @return The assigner
+     * @throws IOException If the file is not an assigner file of a supported version
+     */
+    public static ClusterAssigner read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            BinaryStorage.BlockReader reader = new BinaryStorage.BlockReader(channel);
+            reader.seek(0);
+            if (reader.getInt() != MAGIC) {
+                throw new IOException(String.format("Not a cluster assigner file: %s", file));
+            }
+            int version = reader.getInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported cluster assigner version %d, expected %d", version, VERSION));
+            }
+            int type = reader.getInt();
+            int numOfCentroids = reader.getInt();
+            StringIndex tokenIndices = BinaryStorage.readIndex(reader);
+            reader.align();
+            double[] idfs = reader.getDoubles(tokenIndices.size());
+            SectionVectorizer vectorizer = new SectionVectorizer(tokenIndices, idfs);
+
+            if (type == DENSE) {
+                int columns = reader.getInt();
+                return new ClusterAssigner(vectorizer, BinaryStorage.readCentroids(reader, columns));
+            }
+            if (type == HASHED) {
+                int bits = reader.getInt();
+                int vectorLength = reader.getInt();
+                long seed = reader.getLongs(1)[0];
+                RandomProjectionHash hash = new RandomProjectionHash(seed, vectorLength, bits);
+                long[] centroids = reader.getLongs(numOfCentroids * hash.words());
+                return new ClusterAssigner(vectorizer, hash, centroids);
+            }
+            throw new IOException(String.format("Unknown cluster assigner type %d", type));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package compact;
+
+/**
+ * The cluster of a document and its similarity to the cluster centroid.
+ *
+ * @author Patricia Fischer
+ */
+public class ClusterAssignment {
+    private final int cluster;
+    private final double similarity;
+
+    public ClusterAssignment(int cluster, double similarity) {
+        this.cluster = cluster;
+        this.similarity = similarity;
+    }
+
+    /**
+     * @return The index of the closest centroid
+     */
+    public int cluster() {
+        return cluster;
+    }
+
+    /**
+     * @return The cosine similarity to the centroid, or for hashes the fraction of equal bits
+     */
+    public double similarity() {
+        return similarity;
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterAssignment{" +
+                "cluster=" + cluster +
+                ", similarity=" + similarity +
+                '}';
+    }
+}
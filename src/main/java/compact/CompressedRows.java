@@ -0,0 +1,102 @@
+package compact;
+
+import com.google.common.base.Preconditions;
+import org.la4j.matrix.sparse.CRSMatrix;
+
+/**
+ * Sparse matrix rows stored in three arrays: the row pointers, and the column
+ * indices and values of the non-zeros.
+ *
+ * @author Patricia Fischer
+ */
+public class CompressedRows implements SparseRows {
+
+    private final int rows;
+
+    private final int columns;
+
+    private final int[] rowPointers;  // rows + 1 entries
+
+    private final int[] columnIndices;
+
+    private final double[] values;
+
+    public CompressedRows(int rows, int columns, int[] rowPointers, int[] columnIndices, double[] values) {
+        Preconditions.checkArgument(rowPointers.length == rows + 1,
+                String.format("Row pointers should have length %d, has %d", rows + 1, rowPointers.length));
+        Preconditions.checkArgument(columnIndices.length >= rowPointers[rows] && values.length >= rowPointers[rows],
+                "Fewer column indices or values than non-zeros");
+
+        this.rows = rows;
+        this.columns = columns;
+        this.rowPointers = rowPointers;
+        this.columnIndices = columnIndices;
+        this.values = values;
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public int columns() {
+        return columns;
+    }
+
+    @Override
+    public int cardinality() {
+        return rowPointers[rows];
+    }
+
+    @Override
+    public int rowStart(int row) {
+        return rowPointers[row];
+    }
+
+    @Override
+    public int rowEnd(int row) {
+        return rowPointers[row + 1];
+    }
+
+    @Override
+    public void copyRow(int row, RowBuffer buffer) {
+        int start = rowPointers[row];
+        int length = rowPointers[row + 1] - start;
+        buffer.resize(length);
+        System.arraycopy(columnIndices, start, buffer.columns(), 0, length);
+        System.arraycopy(values, start, buffer.values(), 0, length);
+    }
+
+    @Override
+    public int columnIndex(int pos) {
+        return columnIndices[pos];
+    }
+
+    @Override
+    public double value(int pos) {
+        return values[pos];
+    }
+
+    int[] rowPointers() {
+        return rowPointers;
+    }
+
+    int[] columnIndices() {
+        return columnIndices;
+    }
+
+    double[] values() {
+        return values;
+    }
+
+    /**
+     * Wrap the arrays in a la4j matrix without copying them. Changing the value
+     * of a non-zero cell of the matrix also changes these rows.
+     *
+     * @return The matrix
+     */
+    public CRSMatrix toCRSMatrix() {
+        return new CRSMatrix(rows, columns, cardinality(), values, columnIndices, rowPointers);
+    }
+}
@@ -0,0 +1,694 @@
+package compact;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A corpus stored in a directory that can be extended with new files
+ * without reading the old ones again, see MatrixBuilder.update().
+ *
+ * Each update writes one segment, a BinaryStorage file with the raw term
+ * frequencies of the new sections, their IDs and dates, and the tokens that
+ * were added to the vocabulary by the update. Segments are never changed,
+ * the documents and tokens of the corpus are those of the segments in
+ * order. The idf weights are not stored: they change with every update and
+ * are applied when the matrix is accessed, see rows() and termDocumentMatrix().
+ *
+ * After an update, a background thread merges runs of mergeFactor adjacent
+ * segments of about the same size into one segment, so that the number of
+ * segments grows logarithmically with the number of updates. Only adjacent
+ * segments are merged, so document indices never change.
+ *
+ * The commit file lists the segments and the corpus files read so far, and
+ * holds the document frequencies and token counts of the vocabulary. It is
+ * replaced atomically after a segment is written, so an interrupted update
+ * or merge leaves the previous state intact.
+ *
+ * An index opened with open() holds an exclusive lock on the file write.lock
+ * until it is closed, so there is one writer at a time, also across
+ * processes. Only the writer removes files. Readers use openReadOnly(), which
+ * takes no lock, and see the commit of the time they were opened. A merge of
+ * the writer can remove segments a reader has not mapped yet, rows() then
+ * fails and the reader should open the index again.
+ *
+ * <pre>
+ * int magic, int version, int generation, int documents, int tokens
+ * segment file names  as BinaryStorage.DOCUMENT_INDICES
+ * corpus files        as BinaryStorage.DOCUMENT_INDICES
+ * padding, int[tokens] document frequencies, int[tokens] token counts
+ * </pre>
+ *
+ * @author Patricia Fischer
+ */
+public class CorpusIndex implements Closeable {
+
+    static final int MAGIC = 0x50445449; // "PDTI"
+
+    static final int VERSION = 1;
+
+    private static final String COMMIT_FILE = "index.bin";
+
+    private static final String LOCK_FILE = "write.lock";
+
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_EXTENSION = ".bin";
+
+    private static final int DEFAULT_MERGE_FACTOR = 10;
+
+    private final File directory;
+
+    private final Vocabulary vocabulary;
+
+    private FileChannel lockChannel;  // holds the write lock, null for read-only indices
+
+    private Commit commit;
+
+    private int generation;  // number of the next segment
+
+    private int mergeFactor;
+
+    private ExecutorService merger;
+
+    private CorpusIndex(File directory, Vocabulary vocabulary, Commit commit, int generation) {
+        this.directory = directory;
+        this.vocabulary = vocabulary;
+        this.commit = commit;
+        this.generation = generation;
+        this.mergeFactor = DEFAULT_MERGE_FACTOR;
+    }
+
+    /**
+     * Open the index in a directory for updates, an empty index is created
+     * if the directory does not contain one. Only the indices, dates and
+     * statistics are read, not the term frequencies. The write lock is held
+     * until the index is closed. Segment and temporary files that are not
+     * part of the index, e.g. of an interrupted update, are removed.
+     *
+     * @param directory The index directory
+     * @return The index
+     * @throws IOException If the index is locked by another writer, cannot be read or is inconsistent
+     */
+    public static CorpusIndex open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Cannot create index directory %s", directory));
+        }
+
+        FileChannel lockChannel = FileChannel.open(new File(directory, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;  // held by this process
+            }
+            if (lock == null) {
+                throw new IOException(String.format("Index %s is locked by another writer", directory));
+            }
+
+            CorpusIndex index = read(directory);
+            deleteUnusedFiles(directory, index.commit);
+            index.lockChannel = lockChannel;
+            return index;
+        } catch (IOException | RuntimeException e) {
+            // Closing the channel releases the lock
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open the index in a directory for reading. No lock is taken and no
+     * files are removed, the index cannot be updated.
+     *
+     * @param directory The index directory
+     * @return The index
+     * @throws IOException If the directory has no index, or it cannot be read or is inconsistent
+     */
+    public static CorpusIndex openReadOnly(File directory) throws IOException {
+        if (!new File(directory, COMMIT_FILE).exists()) {
+            throw new IOException(String.format("No corpus index in %s", directory));
+        }
+        return read(directory);
+    }
+
+    private static CorpusIndex read(File directory) throws IOException {
+        File commitFile = new File(directory, COMMIT_FILE);
+        if (!commitFile.exists()) {
+            Commit empty = new Commit(Collections.emptyList(), new int[]{0}, new StringIndex(),
+                    new TIntArrayList(), new TIntArrayList());
+            return new CorpusIndex(directory, new Vocabulary(), empty, 0);
+        }
+
+        try (FileChannel channel = FileChannel.open(commitFile.toPath(), StandardOpenOption.READ)) {
+            BinaryStorage.BlockReader reader = new BinaryStorage.BlockReader(channel);
+            reader.seek(0);
+            if (reader.getInt() != MAGIC) {
+                throw new IOException(String.format("Not a corpus index: %s", commitFile));
+            }
+            int version = reader.getInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported corpus index version %d, expected %d", version, VERSION));
+            }
+            int generation = reader.getInt();
+            int numOfDocuments = reader.getInt();
+            int numOfTokens = reader.getInt();
+            StringIndex segmentNames = BinaryStorage.readIndex(reader);
+            StringIndex files = BinaryStorage.readIndex(reader);
+            reader.align();
+            TIntList documentFrequencies = new TIntArrayList(reader.getInts(numOfTokens));
+            TIntList tokenCounts = new TIntArrayList(reader.getInts(numOfTokens));
+
+            StringIndex documentIndices = new StringIndex();
+            StringIndex tokenIndices = new StringIndex();
+            Map<Integer, Date> documentDates = new HashMap<>();
+            List<String> segments = new ArrayList<>(segmentNames.size());
+            int[] segmentStarts = new int[segmentNames.size() + 1];
+
+            for (int i = 0; i < segmentNames.size(); i++) {
+                String segment = segmentNames.string(i);
+                BinaryStorage storage = BinaryStorage.readMetadata(new File(directory, segment));
+                int start = documentIndices.size();
+                appendIndex(storage.getDocumentIndices(), documentIndices, segment);
+                appendIndex(storage.getTokenIndices(), tokenIndices, segment);
+                for (Map.Entry<Integer, Date> entry : storage.getDocumentDates().entrySet()) {
+                    documentDates.put(start + entry.getKey(), entry.getValue());
+                }
+                segments.add(segment);
+                segmentStarts[i + 1] = documentIndices.size();
+            }
+
+            if (documentIndices.size() != numOfDocuments || tokenIndices.size() != numOfTokens) {
+                throw new IOException(String.format("Segments have %d documents and %d tokens, index has %d and %d",
+                        documentIndices.size(), tokenIndices.size(), numOfDocuments, numOfTokens));
+            }
+
+            Commit commit = new Commit(segments, segmentStarts, files, documentFrequencies, tokenCounts);
+
+            Vocabulary vocabulary = new Vocabulary(documentIndices, tokenIndices,
+                    new TIntArrayList(tokenCounts), new TIntArrayList(documentFrequencies), documentDates);
+            return new CorpusIndex(directory, vocabulary, commit, generation);
+        }
+    }
+
+    private static void appendIndex(StringIndex from, StringIndex to, String segment) throws IOException {
+        for (int i = 0; i < from.size(); i++) {
+            String s = from.string(i);
+            int size = to.size();
+            if (to.add(s) != size) {
+                throw new IOException(String.format("Duplicate entry %s in segment %s", s, segment));
+            }
+        }
+    }
+
+    /**
+     * Remove segments that are not part of the commit and temporary files.
+     * Only safe while holding the write lock, a writer may be writing them.
+     */
+    private static void deleteUnusedFiles(File directory, Commit commit) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(TEMP_EXTENSION)
+                || name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXTENSION));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!commit.segments.contains(file.getName()) && !file.delete()) {
+                System.err.printf("Cannot remove unused file %s%n", file);
+            }
+        }
+    }
+
+    /**
+     * The vocabulary of the corpus: document and token indices, document
+     * frequencies, token counts and dates. MatrixBuilder.update() extends
+     * it with the sections of new files.
+     *
+     * @return The vocabulary
+     */
+    public Vocabulary vocabulary() {
+        return vocabulary;
+    }
+
+    /**
+     * @return The number of segments
+     */
+    public synchronized int numOfSegments() {
+        return commit.segments.size();
+    }
+
+    /**
+     * Set the number of adjacent segments of about the same size that are
+     * merged into one segment, 10 by default.
+     *
+     * @param mergeFactor The number of segments per merge, at least 2
+     */
+    public synchronized void setMergeFactor(int mergeFactor) {
+        if (mergeFactor < 2) {
+            throw new IllegalArgumentException(String.format("Merge factor should be at least 2, is %d", mergeFactor));
+        }
+        this.mergeFactor = mergeFactor;
+    }
+
+    /**
+     * Select the files of a corpus directory that have not been read by an
+     * earlier update. Files are identified by their path relative to the
+     * corpus directory, so the directory can be moved.
+     *
+     * @param corpusDirectory The directory of the data collection
+     * @param corpusFiles     The files of the data collection
+     * @return The new files, in the given order
+     */
+    synchronized List<File> newFiles(File corpusDirectory, List<File> corpusFiles) {
+        List<File> newFiles = new ArrayList<>();
+        for (File file : corpusFiles) {
+            if (commit.files.index(relativePath(corpusDirectory, file)) < 0) {
+                newFiles.add(file);
+            }
+        }
+        return newFiles;
+    }
+
+    private static String relativePath(File corpusDirectory, File file) {
+        return corpusDirectory.getAbsoluteFile().toPath().relativize(file.getAbsoluteFile().toPath()).toString();
+    }
+
+    /**
+     * Write the sections added to the vocabulary since the last commit as a
+     * new segment and commit it together with the files they were read from.
+     * Afterwards, segments are merged in the background if necessary.
+     *
+     * @param corpusDirectory The directory of the data collection
+     * @param newFiles        The files that were read
+     * @param frequencies     The term frequencies of the new sections, one row per section
+     * @throws IOException
+     */
+    void addSegment(File corpusDirectory, List<File> newFiles, CompressedRows frequencies) throws IOException {
+        checkWritable();
+        StringIndex documentIndices = vocabulary.documentIndices();
+        StringIndex tokenIndices = vocabulary.tokenIndices();
+        int numOfDocuments = documentIndices.size();
+        int numOfTokens = tokenIndices.size();
+
+        Commit current;
+        synchronized (this) {
+            current = commit;
+        }
+        int start = current.numOfDocuments();
+        if (frequencies.rows() != numOfDocuments - start) {
+            throw new IllegalArgumentException(String.format("Expected term frequencies of %d sections, got %d",
+                    numOfDocuments - start, frequencies.rows()));
+        }
+
+        String segment = null;
+        if (numOfDocuments > start) {
+            StringIndex segmentDocuments = new StringIndex();
+            Map<Integer, Date> segmentDates = new HashMap<>();
+            for (int doc = start; doc < numOfDocuments; doc++) {
+                segmentDocuments.add(documentIndices.string(doc));
+                segmentDates.put(doc - start, vocabulary.documentDates().get(doc));
+            }
+            StringIndex segmentTokens = new StringIndex();
+            for (int token = current.numOfTokens(); token < numOfTokens; token++) {
+                segmentTokens.add(tokenIndices.string(token));
+            }
+
+            segment = nextSegment();
+            BinaryStorage.write(new File(directory, segment), frequencies, segmentDocuments, segmentTokens,
+                    segmentDates, null);
+        }
+
+        TIntList documentFrequencies = new TIntArrayList(vocabulary.documentFrequencies().toArray(0, numOfTokens));
+        TIntList tokenCounts = new TIntArrayList(vocabulary.tokenCounts().toArray(0, numOfTokens));
+        List<String> fileNames = new ArrayList<>(newFiles.size());
+        for (File file : newFiles) {
+            fileNames.add(relativePath(corpusDirectory, file));
+        }
+
+        synchronized (this) {
+            // A merge may have been committed in the meantime, so start from the latest commit
+            Commit updated = commit.append(segment, numOfDocuments, fileNames, documentFrequencies, tokenCounts);
+            write(updated);
+            commit = updated;
+
+            if (segment != null) {
+                maybeMerge();
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalStateException If the index was opened read-only or is closed
+     */
+    synchronized void checkWritable() {
+        if (lockChannel == null || !lockChannel.isOpen()) {
+            throw new IllegalStateException(String.format("Index %s is read-only or closed", directory));
+        }
+    }
+
+    /**
+     * Reset the vocabulary to the last commit, removing the sections of an
+     * update that failed before it was committed.
+     */
+    synchronized void rollback() {
+        vocabulary.truncate(commit.numOfDocuments(), commit.tokenCounts, commit.documentFrequencies);
+    }
+
+    private synchronized String nextSegment() {
+        return SEGMENT_PREFIX + generation++ + SEGMENT_EXTENSION;
+    }
+
+    /**
+     * Write a commit file next to the current one and move it in place.
+     */
+    private void write(Commit commit) throws IOException {
+        StringIndex segmentNames = new StringIndex();
+        for (String segment : commit.segments) {
+            segmentNames.add(segment);
+        }
+        int numOfTokens = commit.numOfTokens();
+
+        File commitFile = new File(directory, COMMIT_FILE);
+        File tempFile = new File(directory, COMMIT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            BinaryStorage.BlockWriter writer = new BinaryStorage.BlockWriter(channel, 0);
+            writer.putInt(MAGIC);
+            writer.putInt(VERSION);
+            writer.putInt(generation);
+            writer.putInt(commit.numOfDocuments());
+            writer.putInt(numOfTokens);
+            BinaryStorage.writeIndex(writer, segmentNames);
+            BinaryStorage.writeIndex(writer, commit.files);
+            writer.align();
+            writer.putInts(commit.documentFrequencies.toArray(), 0, numOfTokens);
+            writer.putInts(commit.tokenCounts.toArray(), 0, numOfTokens);
+            writer.flush();
+            channel.force(true);
+        }
+
+        Files.move(tempFile.toPath(), commitFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Start merging on the background thread if a run of segments qualifies.
+     */
+    private void maybeMerge() {
+        if (findMerge(commit.segmentStarts, mergeFactor) < 0) {
+            return;
+        }
+        if (merger == null) {
+            merger = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "segment-merger");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        merger.execute(this::merge);
+    }
+
+    /**
+     * Merge segments until no run of segments qualifies anymore. A merged
+     * segment can complete a run of larger segments.
+     */
+    private void merge() {
+        try {
+            while (true) {
+                List<String> merged;
+                String segment;
+                synchronized (this) {
+                    int from = findMerge(commit.segmentStarts, mergeFactor);
+                    if (from < 0) {
+                        return;
+                    }
+                    merged = new ArrayList<>(commit.segments.subList(from, from + mergeFactor));
+                    segment = nextSegment();
+                }
+
+                mergeSegments(merged, new File(directory, segment));
+
+                synchronized (this) {
+                    // Updates only append segments, so the merged segments are still adjacent
+                    Commit updated = commit.merge(commit.segments.indexOf(merged.get(0)), merged.size(), segment);
+                    write(updated);
+                    commit = updated;
+
+                    // Rows mapped from the removed segments stay readable until they are unmapped
+                    for (String name : merged) {
+                        if (!new File(directory, name).delete()) {
+                            System.err.printf("Cannot remove merged segment %s%n", name);
+                        }
+                    }
+                }
+                System.err.printf("Merged %d segments into %s%n", merged.size(), segment);
+            }
+        } catch (IOException e) {
+            System.err.printf("Merging segments failed: %s%n", e.getMessage());
+        }
+    }
+
+    /**
+     * Find the first run of mergeFactor adjacent segments of the lowest
+     * level. The level of a segment is the logarithm of its number of
+     * documents to the base mergeFactor, rounded down.
+     *
+     * @param segmentStarts The first document of each segment, followed by the number of documents
+     * @param mergeFactor   The number of segments per merge
+     * @return The first segment of the run, or -1 if there is none
+     */
+    static int findMerge(int[] segmentStarts, int mergeFactor) {
+        int numOfSegments = segmentStarts.length - 1;
+        int[] levels = new int[numOfSegments];
+        for (int i = 0; i < numOfSegments; i++) {
+            int size = Math.max(1, segmentStarts[i + 1] - segmentStarts[i]);
+            levels[i] = (int) Math.floor(Math.log(size) / Math.log(mergeFactor) + 1e-9);
+        }
+
+        int best = -1;
+        int runStart = 0;
+        for (int i = 1; i <= numOfSegments; i++) {
+            if (i == numOfSegments || levels[i] != levels[runStart]) {
+                if (i - runStart >= mergeFactor && (best < 0 || levels[runStart] < levels[best])) {
+                    best = runStart;
+                }
+                runStart = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Concatenate adjacent segments into one segment file.
+     */
+    private void mergeSegments(List<String> segments, File file) throws IOException {
+        SparseRows[] rows = new SparseRows[segments.size()];
+        StringIndex documentIndices = new StringIndex();
+        StringIndex tokenIndices = new StringIndex();
+        Map<Integer, Date> documentDates = new HashMap<>();
+        int columns = 0;
+
+        for (int i = 0; i < segments.size(); i++) {
+            BinaryStorage storage = BinaryStorage.map(new File(directory, segments.get(i)));
+            int start = documentIndices.size();
+            appendIndex(storage.getDocumentIndices(), documentIndices, segments.get(i));
+            appendIndex(storage.getTokenIndices(), tokenIndices, segments.get(i));
+            for (Map.Entry<Integer, Date> entry : storage.getDocumentDates().entrySet()) {
+                documentDates.put(start + entry.getKey(), entry.getValue());
+            }
+            rows[i] = storage.getRows();
+            columns = Math.max(columns, rows[i].columns());
+        }
+
+        CompressedRows frequencies = CRSBuilder.copyOf(new SegmentedRows(rows, columns, null));
+        BinaryStorage.write(file, frequencies, documentIndices, tokenIndices, documentDates, null);
+    }
+
+    /**
+     * Wait for running merges, stop the merge thread and release the write lock.
+     *
+     * @throws IOException If interrupted while waiting
+     */
+    @Override
+    public void close() throws IOException {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = merger;
+            merger = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for merges", e);
+            }
+        }
+
+        FileChannel channel;
+        synchronized (this) {
+            channel = lockChannel;
+            lockChannel = null;
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * The tf-idf rows of all committed documents, memory-mapped from the
+     * segments and weighted with the current idf weights on access. Use
+     * them e.g. for HashedDocuments.hash() or KMeansClustering.clusters()
+     * across all segments, without loading the corpus onto the heap.
+     *
+     * @return The rows
+     * @throws IOException
+     */
+    public synchronized SegmentedRows rows() throws IOException {
+        return new SegmentedRows(mapSegments(commit), commit.numOfTokens(),
+                TermDocumentMatrix.idfs(commit.documentFrequencies, commit.numOfDocuments()));
+    }
+
+    /**
+     * A vectorizer with the vocabulary and idf weights of all committed
+     * documents, e.g. for a ClusterAssigner. The vectorizer has its own copy
+     * of the committed token indices, later updates do not change it.
+     *
+     * @return The vectorizer
+     */
+    public synchronized SectionVectorizer vectorizer() {
+        return new SectionVectorizer(vocabulary.tokenIndices().prefix(commit.numOfTokens()),
+                TermDocumentMatrix.idfs(commit.documentFrequencies, commit.numOfDocuments()));
+    }
+
+    /**
+     * Load the term frequencies of all segments and weight them with the
+     * idf weights of the current document frequencies. The matrix has its
+     * own copies of the committed document and token indices, sections of
+     * an update in progress are not part of it.
+     *
+     * @return The tf-idf matrix of the corpus
+     * @throws IOException
+     */
+    public TermDocumentMatrix termDocumentMatrix() throws IOException {
+        Commit current;
+        SparseRows[] segments;
+        StringIndex documentIndices;
+        StringIndex tokenIndices;
+        synchronized (this) {
+            current = commit;
+            segments = mapSegments(current);
+            documentIndices = vocabulary.documentIndices().prefix(current.numOfDocuments());
+            tokenIndices = vocabulary.tokenIndices().prefix(current.numOfTokens());
+        }
+
+        CompressedRows frequencies = CRSBuilder.copyOf(new SegmentedRows(segments, current.numOfTokens(), null));
+        double[] idfs = TermDocumentMatrix.idfs(current.documentFrequencies, current.numOfDocuments());
+        TermDocumentMatrix tdm = new TermDocumentMatrix(documentIndices, tokenIndices);
+        tdm.setRows(TermDocumentMatrix.toTfIdf(frequencies, idfs));
+        return tdm;
+    }
+
+    /**
+     * Map the segments of a commit. Called with the lock held, so that a
+     * merge cannot remove the segments in between.
+     */
+    private SparseRows[] mapSegments(Commit commit) throws IOException {
+        SparseRows[] segments = new SparseRows[commit.segments.size()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = MappedRows.map(new File(directory, commit.segments.get(i)));
+        }
+        return segments;
+    }
+
+    /**
+     * The committed state of the index. A commit is not changed, updates
+     * and merges replace it.
+     */
+    private static class Commit {
+        private final List<String> segments;
+        private final int[] segmentStarts;  // first document of each segment, followed by the number of documents
+        private final StringIndex files;  // corpus files read so far, relative to their corpus directory
+        private final TIntList documentFrequencies;
+        private final TIntList tokenCounts;
+
+        private Commit(List<String> segments, int[] segmentStarts, StringIndex files,
+                       TIntList documentFrequencies, TIntList tokenCounts) {
+            this.segments = Collections.unmodifiableList(segments);
+            this.segmentStarts = segmentStarts;
+            this.files = files;
+            this.documentFrequencies = documentFrequencies;
+            this.tokenCounts = tokenCounts;
+        }
+
+        private int numOfDocuments() {
+            return segmentStarts[segments.size()];
+        }
+
+        private int numOfTokens() {
+            return documentFrequencies.size();
+        }
+
+        /**
+         * @param segment        The new segment, or null if the files had no new sections
+         * @param numOfDocuments The number of documents including the new segment
+         */
+        private Commit append(String segment, int numOfDocuments, List<String> newFiles,
+                              TIntList documentFrequencies, TIntList tokenCounts) {
+            List<String> newSegments = new ArrayList<>(segments);
+            int[] newStarts = segmentStarts;
+            if (segment != null) {
+                newSegments.add(segment);
+                newStarts = Arrays.copyOf(segmentStarts, segmentStarts.length + 1);
+                newStarts[newSegments.size()] = numOfDocuments;
+            }
+
+            StringIndex newFileNames = new StringIndex();
+            for (int i = 0; i < files.size(); i++) {
+                newFileNames.add(files.string(i));
+            }
+            for (String file : newFiles) {
+                newFileNames.add(file);
+            }
+
+            return new Commit(newSegments, newStarts, newFileNames, documentFrequencies, tokenCounts);
+        }
+
+        /**
+         * Replace the segments [from, from + count) by one segment.
+         */
+        private Commit merge(int from, int count, String segment) {
+            List<String> newSegments = new ArrayList<>(segments.subList(0, from));
+            newSegments.add(segment);
+            newSegments.addAll(segments.subList(from + count, segments.size()));
+
+            int[] newStarts = new int[newSegments.size() + 1];
+            System.arraycopy(segmentStarts, 0, newStarts, 0, from + 1);
+            System.arraycopy(segmentStarts, from + count, newStarts, from + 1, segments.size() - from - count + 1);
+
+            return new Commit(newSegments, newStarts, files, documentFrequencies, tokenCounts);
+        }
+    }
+}
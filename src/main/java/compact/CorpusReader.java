@@ -0,0 +1,137 @@
+package compact;
+
+import static compact.ReaderUtils.getReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Read all files of a corpus and hand their sections to a SectionHandler.
+ * With more than one thread, files are decompressed and parsed by a pool of
+ * workers, each file by its own Reader, so no reader state is shared between
+ * threads. The sections are always handed out in the order of the files,
+ * which keeps the document indices stable across runs.
+ *
+ * @author Patricia Fischer
+ */
+public class CorpusReader {
+
+    private final String corpus;
+
+    private final Layer layer;
+
+    private final int numOfThreads;
+
+    /**
+     * @param corpus       The name of the corpus, either PolMine or taz
+     * @param layer        Read tokens or lemmas
+     * @param numOfThreads The number of worker threads, 1 reads sequentially
+     */
+    public CorpusReader(String corpus, Layer layer, int numOfThreads) {
+        if (numOfThreads < 1) {
+            throw new IllegalArgumentException(String.format("Number of threads should be positive, is %d", numOfThreads));
+        }
+        this.corpus = corpus;
+        this.layer = layer;
+        this.numOfThreads = numOfThreads;
+    }
+
+    /**
+     * Process the sections of all files, file by file in the given order.
+     *
+     * @param files   The files of the corpus
+     * @param handler The handler receiving the sections
+     * @return The metadata of all sections (section ID <-> date, sentence count, token count)
+     * @throws IOException
+     */
+    public Map<String, List<String>> read(List<File> files, SectionHandler handler) throws IOException {
+        if (numOfThreads == 1) {
+            return readSequential(files, handler);
+        }
+        return readParallel(files, handler);
+    }
+
+    private Map<String, List<String>> readSequential(List<File> files, SectionHandler handler) throws IOException {
+        Reader read = getReader(corpus, layer);
+
+        int filesDone = 0;
+        for (File file : files) {
+            // Extract content of section(s)
+            read.processFile(file);
+            processSections(read.getSectionIDs(), read.getContent(), handler);
+            System.err.println(++filesDone);
+        }
+
+        return read.getMetadata();
+    }
+
+    private Map<String, List<String>> readParallel(List<File> files, SectionHandler handler) throws IOException {
+        Map<String, List<String>> metadata = new HashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(numOfThreads);
+
+        try {
+            // Keep a bounded number of files in flight, so that parsed files do
+            // not pile up in memory while the handler catches up.
+            Queue<Future<Reader>> pending = new ArrayDeque<>();
+            int nextFile = 0;
+            int filesDone = 0;
+            while (filesDone < files.size()) {
+                while (nextFile < files.size() && pending.size() < 2 * numOfThreads) {
+                    File file = files.get(nextFile++);
+                    pending.add(executor.submit(() -> {
+                        Reader read = getReader(corpus, layer);
+                        read.processFile(file);
+                        return read;
+                    }));
+                }
+
+                Reader read = await(pending.remove());
+                processSections(read.getSectionIDs(), read.getContent(), handler);
+                for (Map.Entry<String, List<String>> entry : read.getMetadata().entrySet()) {
+                    metadata.putIfAbsent(entry.getKey(), entry.getValue());
+                }
+                System.err.println(++filesDone);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return metadata;
+    }
+
+    private void processSections(List<String> sectionIDs, List<Map<String, Integer>> content, SectionHandler handler) throws IOException {
+        for (int i = 0; i < sectionIDs.size(); i++) {
+            handler.processSection(sectionIDs.get(i), content.get(i));
+        }
+    }
+
+    private Reader await(Future<Reader> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading corpus", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Receives the content of the sections read from the corpus.
+     */
+    public interface SectionHandler {
+        void processSection(String sectionID, Map<String, Integer> wordFrequencies) throws IOException;
+    }
+}
@@ -90,7 +90,7 @@ public class HashUtils {
                 cosineSimilaritiesAll.add(counts.getRow(doc).innerProduct(counts.getRow(row)));
             }
 
-            Set<Integer> mostSimilar = mostSimilarDocuments(cosineSimilaritiesAll, 10); // get 15 most documents which are the most similar to current doc
+            int[] mostSimilar = mostSimilarDocuments(cosineSimilaritiesAll, 10); // get 15 most documents which are the most similar to current doc
 
             TDoubleList cosineSimilarities = new TDoubleArrayList();
             TDoubleList hammingSimilarities = new TDoubleArrayList();
@@ -176,37 +176,15 @@ public class HashUtils {
      *
      * @param cosineSimilarities A list of cosine similarity scores
      * @param n The number of most similar documents
-     * @return The n most similar documents
+     * @return The n most similar documents, most similar first
      */
-    protected static Set<Integer> mostSimilarDocuments(TDoubleList cosineSimilarities, int n) {
-        ScoreComparator comparator = new ScoreComparator(cosineSimilarities);
-        BestN<Integer> bestN = new BestN(n, comparator);
+    protected static int[] mostSimilarDocuments(TDoubleList cosineSimilarities, int n) {
+        TopScores best = new TopScores(n);
 
         for (int i = 0; i < cosineSimilarities.size(); i++) {
-            bestN.add(i);
+            best.add(i, cosineSimilarities.get(i));
         }
 
-        return new HashSet(bestN);
-    }
-
-    /**
-     * Comparator for documents (by index). A document with a higher cosine similarity is sorted
-     * before a document with a lower cosine similarity.
-     */
-    private static class ScoreComparator implements Comparator<Integer> {
-        private final TDoubleList scores;
-
-        private ScoreComparator(TDoubleList scores) {
-            this.scores = scores;
-        }
-
-        @Override
-        public int compare(Integer idx1, Integer idx2) {
-            int scoreCmp = Double.compare(scores.get(idx2), scores.get(idx1));
-            if (scoreCmp != 0)
-                return scoreCmp;
-
-            return Integer.compare(idx1, idx2);
-        }
+        return best.ids();
     }
 }
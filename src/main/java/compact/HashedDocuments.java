@@ -2,13 +2,13 @@ package compact;
 
 import com.carrotsearch.hppc.BitSet;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.BiMap;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -16,66 +16,162 @@ import java.util.Optional;
  * A container of hashed documents, which can be used to
  * find documents that are similar to a particular document.
  *
+ * The hashes of all documents are stored in one long array, the hash of
+ * document i takes up the words at i * words() to (i + 1) * words().
+ *
  * @author Daniël de Kok and Patricia Fischer
  */
 public class HashedDocuments implements Serializable {
-    private static final long serialVersionUID = 2L;
+    private static final long serialVersionUID = 3L;
 
-    private BiMap<String, Integer> documentIndices;
-    private List<BitSet> documentHashes;
+    private StringIndex documentIndices;
+    private long[] documentHashes;
     private int hashLength;
+    private int words;
 
-    public HashedDocuments(BiMap<String, Integer> documentIndices, List<BitSet> documentHashes, int hashLength) {
+    public HashedDocuments(StringIndex documentIndices, long[] documentHashes, int hashLength) {
         Preconditions.checkNotNull(documentIndices);
         Preconditions.checkNotNull(documentHashes);
 
         this.documentIndices = documentIndices;
         this.documentHashes = documentHashes;
         this.hashLength = hashLength;
+        this.words = (hashLength + 63) >>> 6;
+
+        Preconditions.checkArgument(documentHashes.length % words == 0,
+                String.format("Hash array length %d is not a multiple of %d", documentHashes.length, words));
     }
 
-    public List<BitSet> getDocumentHashes() {
-        return documentHashes;
+    /**
+     * Hash all rows of a matrix. The rows are split into ranges which are
+     * hashed in parallel, each writing directly into the shared hash array.
+     *
+     * @param documentIndices The document indices
+     * @param rows            The document vectors
+     * @param rph             The hash function
+     * @param numOfThreads    The number of threads
+     * @return The hashed documents
+     */
+    public static HashedDocuments hash(StringIndex documentIndices, SparseRows rows, RandomProjectionHash rph, int numOfThreads) {
+        Preconditions.checkArgument(rows.columns() == rph.vectorLength(),
+                String.format("Rows should have length %d, have %d", rph.vectorLength(), rows.columns()));
+        int words = rph.words();
+        long[] hashes = new long[rows.rows() * words];
+
+        ParallelUtils.forEachRange(rows.rows(), numOfThreads, (from, to) -> {
+            double[] accumulators = new double[words << 6];
+            RowBuffer buffer = new RowBuffer();
+            for (int row = from; row < to; row++) {
+                rows.copyRow(row, buffer);
+                rph.hashRow(buffer, accumulators, hashes, row * words);
+            }
+        });
+
+        return new HashedDocuments(documentIndices, hashes, rph.bits());
+    }
+
+    /**
+     * @return The number of hashed documents
+     */
+    public int size() {
+        return documentHashes.length / words;
     }
 
     public int getHashLength() {
         return hashLength;
     }
 
-    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
-        documentIndices = (BiMap<String, Integer>) in.readObject();
-        List<long[]> rawBitsets = (List<long[]>) in.readObject();
-        documentHashes = new ArrayList<>(rawBitsets.size());
+    /**
+     * @return The number of longs per hash
+     */
+    public int words() {
+        return words;
+    }
 
-        for (long[] rawBitset : rawBitsets) {
-            documentHashes.add(new BitSet(rawBitset, rawBitset.length));
+    /**
+     * @return The indices of the documents
+     */
+    StringIndex documentIndices() {
+        return documentIndices;
+    }
+
+    /**
+     * @return The packed hashes of all documents
+     */
+    long[] hashes() {
+        return documentHashes;
+    }
+
+    /**
+     * @param doc The document index
+     * @return A copy of the hash of the document
+     */
+    public BitSet hash(int doc) {
+        long[] bits = Arrays.copyOfRange(documentHashes, doc * words, (doc + 1) * words);
+        return new BitSet(bits, bits.length);
+    }
+
+    /**
+     * Copies the hashes into one BitSet per document, prefer hashes() for
+     * going over all documents.
+     *
+     * @return The document hashes
+     */
+    public List<BitSet> getDocumentHashes() {
+        List<BitSet> hashes = new ArrayList<>(size());
+        for (int doc = 0; doc < size(); doc++) {
+            hashes.add(hash(doc));
         }
+        return hashes;
+    }
+
+    /**
+     * @return The number of bits in which the hashes of two documents differ
+     */
+    public int distance(int doc1, int doc2) {
+        return distance(documentHashes, doc1 * words, documentHashes, doc2 * words, words);
+    }
 
+    static int distance(long[] hashes1, int offset1, long[] hashes2, int offset2, int words) {
+        int distance = 0;
+        for (int i = 0; i < words; i++) {
+            distance += Long.bitCount(hashes1[offset1 + i] ^ hashes2[offset2 + i]);
+        }
+        return distance;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        documentIndices = (StringIndex) in.readObject();
+        documentHashes = (long[]) in.readObject();
         hashLength = in.readInt();
+        words = (hashLength + 63) >>> 6;
     }
 
+    /**
+     * Find the documents with the hashes closest to the hash of a document by
+     * comparing with all documents, see MultiIndexHashing for faster queries.
+     */
     public Optional<List<DocumentDistance>> similar(String docId, int n) {
         Preconditions.checkNotNull(docId);
 
-        Integer tokenIdx = documentIndices.get(docId);
-        if (tokenIdx == null) {
+        int tokenIdx = documentIndices.index(docId);
+        if (tokenIdx < 0) {
             return Optional.empty();
         }
 
         BestN<DocumentDistance> bestN = new BestN<>(n);
 
-        BitSet tokenHash = documentHashes.get(tokenIdx);
-        for (int i = 0; i < documentHashes.size(); i++) {
+        for (int i = 0; i < size(); i++) {
             if (i == tokenIdx) {
                 continue;
             }
 
-            double distance = (double) BitSet.xorCount(tokenHash, documentHashes.get(i)) / hashLength;
+            double distance = (double) distance(tokenIdx, i) / hashLength;
 
             //DocumentSimilarity
             //number of documents are the columns here, would be number of words for PDT
             //some words will only have few documents in which they occur
-            DocumentDistance documentDistance = new DocumentDistance(documentIndices.inverse().get(i), distance);
+            DocumentDistance documentDistance = new DocumentDistance(documentIndices.string(i), distance);
             bestN.add(documentDistance);
         }
 
@@ -83,13 +179,8 @@ public class HashedDocuments implements Serializable {
     }
 
     private void writeObject(ObjectOutputStream out) throws IOException {
-        List<long[]> rawBitsets = new ArrayList<>(documentHashes.size());
-        for (BitSet tokenHash : documentHashes) {
-            rawBitsets.add(tokenHash.bits);
-        }
-
         out.writeObject(documentIndices);
-        out.writeObject(rawBitsets);
+        out.writeObject(documentHashes);
         out.writeInt(hashLength);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,27 @@
+package compact;
+
+/**
+ * Receives the progress of k-means clustering.
+ *
+ * @author Patricia Fischer
+ */
+public interface IterationListener {
+
+    /**
+     * Called after each iteration.
+     *
+     * @param iteration  The iteration, starting at 1
+     * @param objective  The average objective of the documents over their closest centroid
+     * @param reassigned The number of documents that changed cluster, all documents in the first iteration
+     */
+    void iteration(int iteration, double objective, int reassigned);
+
+    /**
+     * Called once clustering stops.
+     *
+     * @param iterations The number of iterations
+     * @param objectives The objective of each document in the last iteration
+     */
+    default void finished(int iterations, double[] objectives) {
+    }
+}
@@ -1,64 +1,189 @@
 package compact;
 
-import gnu.trove.list.TDoubleList;
 import gnu.trove.list.TIntList;
-import gnu.trove.list.array.TDoubleArrayList;
 import gnu.trove.list.array.TIntArrayList;
 
 import java.io.IOException;
 import java.util.*;
-import org.apache.commons.math3.util.Pair;
-
-import org.la4j.Vector;
-import org.la4j.Matrix;
-import org.la4j.vector.SparseVector;
 
 /**
  * K-means clustering for document vectors.
  *
+ * Centroids are dense arrays of length vocabulary size, so that the
+ * similarity of a document to a centroid is a loop over the non-zeros of
+ * the document. The document vectors are not modified: instead of
+ * normalizing them, the inverse norm of each document is stored. Note that
+ * the centroids take numOfClusters x vocabulary size doubles.
+ *
  * @author Patricia Fischer
  */
 public class KMeansClustering {
 
+    /**
+     * The k-means algorithm, all give the same assignments.
+     */
+    public enum Algorithm {
+        /**
+         * Compare each document with all centroids in every iteration.
+         */
+        LLOYD,
+
+        /**
+         * Keep a lower bound on the distance of each document to all but its
+         * closest centroid (Hamerly, 2010). The bound is lowered by the largest
+         * centroid drift after each iteration. When the distance to the
+         * assigned centroid is still below the bound, the other centroids are
+         * not compared.
+         */
+        HAMERLY,
+
+        /**
+         * Compare each document with all centroids in every iteration, through
+         * an inverted index from terms to centroid weights that is built once
+         * per iteration (see CentroidIndex). Only the centroids that share
+         * terms with a document are touched, which pays off for many clusters
+         * and short documents.
+         *
+         * The exact index holds about numOfClusters x vocabulary size
+         * postings besides the dense centroids, since centroids have weights
+         * for most terms. For tens of thousands of clusters this does not fit
+         * in memory: limit the indexed terms per centroid with
+         * setCentroidTerms(), which makes the assignments approximate.
+         */
+        INVERTED_INDEX
+    }
+
+    // Margin for rounding errors in the distance bounds, pruning is only
+    // done when the decision does not depend on rounding.
+    private static final double EPSILON = 1e-6;
+
     private final int numOfClusters;
 
-    private final Matrix documentVectors;
+    private final SparseRows documentVectors;
+
+    private final double[] inverseNorms;
 
     private final Random random;
-    
-    private static double cosine;
 
-    private final int NUM_OF_ITER = 3;
+    private final int numOfThreads;
+
+    private StoppingPolicy stoppingPolicy = StoppingPolicy.DEFAULT;
 
+    private IterationListener listener = (iteration, objective, reassigned) -> { };
 
-    public KMeansClustering(int numOfClusters, Matrix documentVectors, Random random) {
+    private Seeding seeding = Seeding.RANDOM;
+
+    private Algorithm algorithm = Algorithm.LLOYD;
+
+    private int centroidTerms = 0;
+
+
+    public KMeansClustering(int numOfClusters, SparseRows documentVectors, Random random) {
+        this(numOfClusters, documentVectors, random, 1);
+    }
+
+    /**
+     * @param numOfThreads The number of threads used in the assignment step
+     */
+    public KMeansClustering(int numOfClusters, SparseRows documentVectors, Random random, int numOfThreads) {
         this.numOfClusters = numOfClusters;
         this.documentVectors = documentVectors;
         this.random = random;
+        this.numOfThreads = numOfThreads;
+        this.inverseNorms = VectorUtils.inverseNorms(documentVectors);
+    }
+
+    public void setSeeding(Seeding seeding) {
+        this.seeding = seeding;
+    }
+
+    public void setStoppingPolicy(StoppingPolicy stoppingPolicy) {
+        this.stoppingPolicy = stoppingPolicy;
+    }
+
+    public void setAlgorithm(Algorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * @param centroidTerms The number of terms indexed per centroid by the
+     *                      INVERTED_INDEX algorithm, 0 for all terms (see CentroidIndex)
+     */
+    public void setCentroidTerms(int centroidTerms) {
+        this.centroidTerms = centroidTerms;
+    }
+
+    /**
+     * @param listener Receives the average cosine similarity of each iteration
+     */
+    public void setIterationListener(IterationListener listener) {
+        this.listener = listener;
     }
 
     /**
      * Create several clusters to decide for best one based on cosine similarity
-     * of vectors to centroids.
+     * of vectors to centroids. The clusterings run concurrently over the shared
+     * document vectors, the threads are divided over the clusterings. Each
+     * clustering has its own random number generator, seeded from the random
+     * number generator of this instance. The listener receives the iterations
+     * of all clusterings, possibly from several threads.
      *
      * @param n Number of cluster calculations
-     * @return Best clustering
+     * @return Best clustering, the first one of equally good clusterings
      * @throws IOException
      */
-    public List<TIntList> nClusters(Integer n) throws IOException {
-        
-        double maximum = -Double.MAX_VALUE;
-        List<TIntList> bestCluster = new ArrayList<>();
-        List<TIntList> cluster;
+    public KMeansResult<double[][]> nClusters(int n) throws IOException {
+        checkClusterable();
+
+        Random[] randoms = new Random[n];
         for (int i = 0; i < n; i++) {
-            cluster = clusters(centroids());
-            if (cosine > maximum) {
-                maximum = cosine;
-                bestCluster = cluster;
+            randoms[i] = new Random(random.nextLong());
+        }
+
+        int restartThreads = Math.max(1, Math.min(n, numOfThreads));
+        int threadsPerRestart = Math.max(1, numOfThreads / restartThreads);
+
+        List<KMeansResult<double[][]>> results = new ArrayList<>(Collections.nCopies(n, null));
+        ParallelUtils.forEachRange(n, restartThreads, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                results.set(i, cluster(randoms[i], threadsPerRestart));
+            }
+        });
+
+        KMeansResult<double[][]> best = null;
+        for (KMeansResult<double[][]> result : results) {
+            if (best == null || result.objective() > best.objective()) {
+                best = result;
             }
         }
-                
-        return bestCluster;
+
+        return best;
+    }
+
+    /**
+     * Cluster the documents once: compute the centroids and assign each
+     * document to its closest centroid.
+     *
+     * @return The clustering
+     * @throws IOException
+     */
+    public KMeansResult<double[][]> cluster() throws IOException {
+        checkClusterable();
+        return cluster(random, numOfThreads);
+    }
+
+    private KMeansResult<double[][]> cluster(Random random, int threads) {
+        double[][] centroids = iterate(random, threads);
+
+        int numOfDocs = documentVectors.rows();
+        int[] assignments = new int[numOfDocs];
+        double[] similarities = new double[numOfDocs];
+        CentroidIndex index = centroidIndex(centroids, threads);
+        Assignment assignment = ParallelUtils.reduceRanges(numOfDocs, threads,
+                (from, to) -> assign(centroids, index, from, to, assignments, similarities),
+                Assignment::merge);
+
+        return new KMeansResult<>(numOfClusters, assignments, centroids, assignment.objective / numOfDocs);
     }
 
     /**
@@ -66,134 +191,375 @@ public class KMeansClustering {
      * the vectors in the matrix to the centroids and assign vectors to closest
      * centroid. Each cluster contains row indices of the doc vectors in the cluster.
      *
-     * @param centroids The list of centroid vectors
+     * @param centroids The unit length centroid vectors
      * @return The clusters as list of vector idxs
      */
-    public List<TIntList> clusters(List<Vector> centroids) {
+    public List<TIntList> clusters(double[][] centroids) {
 
-        List<TIntList> clusters = new ArrayList<>(centroids.size());
+        List<TIntList> clusters = new ArrayList<>(centroids.length);
         for (int i = 0; i < numOfClusters; i++) {
             clusters.add(new TIntArrayList());
         }
 
-        for (int row = 0; row < documentVectors.rows(); row++) {
-            double maxSimilarity = -Double.MAX_VALUE;
-            int closesCentroidIdx = 0;
-
-            for (int i = 0; i < centroids.size(); i++) {
-                Vector centroid = centroids.get(i);
-
-                double similarity = documentVectors.getRow(row).innerProduct(centroid);
-                if (similarity > maxSimilarity) {
-                    maxSimilarity = similarity;
-                    closesCentroidIdx = i;
-                }
-            }
+        int[] assignments = new int[documentVectors.rows()];
+        double[] similarities = new double[documentVectors.rows()];
+        CentroidIndex index = centroidIndex(centroids, numOfThreads);
+        ParallelUtils.forEachRange(documentVectors.rows(), numOfThreads,
+                (from, to) -> assign(centroids, index, from, to, assignments, similarities));
 
-            clusters.get(closesCentroidIdx).add(row);
+        for (int row = 0; row < assignments.length; row++) {
+            clusters.get(assignments[row]).add(row);
         }
 
         return clusters;
     }
 
     /**
-     * Cluster data by k-means clustering. Calculate euclidean distance from all
+     * Cluster data by k-means clustering. Calculate cosine similarity from all
      * document vectors to all centroids, assign each to their closest centroid.
      * When all documents are assigned to a centroid, readjust centroids.
+     * Repeat until the stopping policy is met.
      *
-     * @return The clusters
+     * @return The unit length centroids, numOfClusters x vocabulary size
      * @throws java.io.IOException
      */
 
-    public List<Vector> centroids() throws IOException {
+    public double[][] centroids() throws IOException {
+        checkClusterable();
+        return iterate(random, numOfThreads);
+    }
 
-        if (documentVectors.max() == 0) {
+    private void checkClusterable() throws IOException {
+        if (documentVectors.cardinality() == 0) {
             throw new IOException("Trying to extract clusters from zero matrix");
         }
 
         if (documentVectors.rows() < numOfClusters) {
             throw new IOException("Trying to extract more clusters than matrix has elements");
         }
+    }
 
+    private double[][] iterate(Random random, int threads) {
         int vectorLength = documentVectors.columns();  //vocab size
         int numOfDocs = documentVectors.rows();
 
-        normalizeDocumentVectors(documentVectors);
+        // Choose centroids from document vectors, the cost of a document is its squared distance to a seed
+        int[] seedDocs = KMeansSeeding.seeds(seeding, new KMeansSeeding.Cost() {
+            @Override
+            public int size() {
+                return numOfDocs;
+            }
 
-        // Choose random centroids from document vectors
-        Set<Integer> seedDocs = new HashSet<>();
-        while (seedDocs.size() < numOfClusters) {
-            seedDocs.add(this.random.nextInt(numOfDocs));
-        }
+            @Override
+            public double cost(int doc, int seed) {
+                return Math.max(0, 2 - 2 * VectorUtils.dotProduct(documentVectors, doc, documentVectors, seed)
+                        * inverseNorms[doc] * inverseNorms[seed]);
+            }
+        }, numOfClusters, random, threads);
 
-        List<Vector> centroids = new ArrayList<>();
-        for (int doc : seedDocs) {
-            centroids.add(documentVectors.getRow(doc));
+        double[][] centroids = new double[numOfClusters][vectorLength];
+        for (int seed = 0; seed < numOfClusters; seed++) {
+            addTo(centroids[seed], seedDocs[seed]);
         }
 
-        for (int iter = 0; iter < NUM_OF_ITER; iter++) {
-            double objective = 0;
-            TDoubleList cosineSimilarities = new TDoubleArrayList();
+        // The centroids of the next iteration, swapped with the current centroids
+        double[][] adjustedCentroids = new double[numOfClusters][vectorLength];
 
-            int[] numOfClusterElements = new int[numOfClusters];
-            List<Vector> adjustedCentroids = new ArrayList<>();
-            for (int i = 0; i < numOfClusters; i++) {
-                adjustedCentroids.add(SparseVector.zero(vectorLength));
-            }
+        int[] assignments = new int[numOfDocs];
+        Arrays.fill(assignments, -1);
+        double[] cosineSimilarities = new double[numOfDocs];
+
+        Bounds bounds = algorithm == Algorithm.HAMERLY ? new Bounds(numOfDocs, numOfClusters) : null;
 
+        double previousObjective = Double.NEGATIVE_INFINITY;
+        int iter = 0;
+        boolean stop = false;
+        while (!stop) {
+            iter++;
             System.err.println("Iterating...");
 
             // Assign vectors to their closest centroid
-            for (int row = 0; row < numOfDocs; row++) {
-
-                double maximum = -Double.MAX_VALUE;
-                int idx = -1;
-                for (int i = 0; i < centroids.size(); i++) {
-                    double similarity = documentVectors.getRow(row).innerProduct(centroids.get(i));
-                    if (similarity > maximum) {
-                        maximum = similarity;
-                        idx = i; // index of closest centroid
-                    }
+            double[][] currentCentroids = centroids;
+            CentroidIndex index = centroidIndex(currentCentroids, threads);
+            Assignment assignment = ParallelUtils.reduceRanges(numOfDocs, threads,
+                    (from, to) -> bounds == null ?
+                            assign(currentCentroids, index, from, to, assignments, cosineSimilarities) :
+                            assignBounded(currentCentroids, from, to, assignments, cosineSimilarities, bounds),
+                    Assignment::merge);
+
+            System.err.println("Recomputing centroids...");
+
+            recomputeCentroids(assignments, adjustedCentroids, threads);
+            if (bounds != null) {
+                bounds.computeDrifts(currentCentroids, adjustedCentroids, threads);
+            }
+            centroids = adjustedCentroids;
+            adjustedCentroids = currentCentroids;
+
+            double cosine = assignment.objective / numOfDocs;
+            listener.iteration(iter, cosine, assignment.reassigned);
+
+            stop = stoppingPolicy.stop(iter, cosine - previousObjective, assignment.reassigned, numOfDocs);
+            previousObjective = cosine;
+        }
+
+        listener.finished(iter, cosineSimilarities);
+
+        return centroids;
+    }
+
+    /**
+     * @return The inverted index of the centroids for the INVERTED_INDEX algorithm, null otherwise
+     */
+    private CentroidIndex centroidIndex(double[][] centroids, int threads) {
+        return algorithm == Algorithm.INVERTED_INDEX ? new CentroidIndex(centroids, centroidTerms, threads) : null;
+    }
+
+    /**
+     * Assign the documents [from, to) to their closest centroid.
+     *
+     * @param centroids          The centroids
+     * @param index              The inverted index of the centroids, null to compare with the dense centroids
+     * @param assignments        Stores the closest centroid of each document
+     * @param cosineSimilarities Stores the similarity to the closest centroid of each document
+     * @return The sum of the similarities of the documents to their closest centroid
+     * and the number of documents that changed cluster
+     */
+    private Assignment assign(double[][] centroids, CentroidIndex index, int from, int to, int[] assignments, double[] cosineSimilarities) {
+        Assignment assignment = new Assignment();
+        double[] dotProducts = index == null ? null : new double[centroids.length];
+        RowBuffer document = new RowBuffer();
+
+        for (int row = from; row < to; row++) {
+            documentVectors.copyRow(row, document);
+            if (index != null) {
+                index.dotProducts(document, dotProducts);
+            }
+
+            double maximum = -Double.MAX_VALUE;
+            int idx = -1;
+            for (int i = 0; i < centroids.length; i++) {
+                double similarity = index == null ? similarity(document, row, centroids[i]) : dotProducts[i] * inverseNorms[row];
+                if (similarity > maximum) {
+                    maximum = similarity;
+                    idx = i; // index of closest centroid
                 }
-                // add vector at idx of closest centroid -> "assign" vector to centroid
-                adjustedCentroids.set(idx, adjustedCentroids.get(idx).add(documentVectors.getRow(row)));
-                numOfClusterElements[idx]++;
-                objective += maximum;
-                cosineSimilarities.add(maximum);
             }
 
-            System.err.println("Recomputing centroids...");
+            if (assignments[row] != idx) {
+                assignment.reassigned++;
+            }
+            assignment.objective += maximum;
+            assignments[row] = idx;
+            cosineSimilarities[row] = maximum;
+        }
+
+        return assignment;
+    }
 
-            for (int idx = 0; idx < adjustedCentroids.size(); idx++) {
-                // Compute centroid and normalize to unit vector.
-                SparseVector unnormalizedCentroid = adjustedCentroids.get(idx).divide(numOfClusterElements[idx]).toSparseVector();
-                adjustedCentroids.set(idx, unnormalizedCentroid.divide(norm(unnormalizedCentroid)));
+    /**
+     * Assign the documents [from, to) to their closest centroid, comparing
+     * a document with all centroids only when the bounds cannot rule out
+     * that its closest centroid changed. Distances are euclidean distances
+     * between unit vectors, sqrt(2 - 2 * cosine). Makes the same choices as
+     * assign().
+     *
+     * @param centroids          The centroids
+     * @param assignments        Stores the closest centroid of each document
+     * @param cosineSimilarities Stores the similarity to the closest centroid of each document
+     * @param bounds             The distance bounds, updated for the new assignments
+     * @return The sum of the similarities of the documents to their closest centroid
+     * and the number of documents that changed cluster
+     */
+    private Assignment assignBounded(double[][] centroids, int from, int to, int[] assignments, double[] cosineSimilarities, Bounds bounds) {
+        Assignment assignment = new Assignment();
+        RowBuffer document = new RowBuffer();
+
+        for (int row = from; row < to; row++) {
+            int idx = assignments[row];
+            documentVectors.copyRow(row, document);
+
+            if (idx >= 0) {
+                // The other centroids moved at most the largest drift towards the document
+                double lower = bounds.lower[row] - bounds.maxDriftExcept(idx) - EPSILON;
+                double maximum = similarity(document, row, centroids[idx]);
+                if (distance(maximum) + EPSILON < lower) {
+                    bounds.lower[row] = lower;
+                    assignment.objective += maximum;
+                    cosineSimilarities[row] = maximum;
+                    continue;
+                }
             }
 
-            centroids = adjustedCentroids;
-            cosine = objective / numOfDocs;
-            System.out.printf("Average cosine similarity %s: %s%n", iter+1, cosine);
-            if (iter == NUM_OF_ITER-1) {
-                System.out.println("Single cosine similarities:");
-                for (int i = 0; i < cosineSimilarities.size(); i++) {
-                    System.out.println(cosineSimilarities.get(i));
+            double maximum = -Double.MAX_VALUE;
+            double secondMaximum = -Double.MAX_VALUE;
+            idx = -1;
+            for (int i = 0; i < centroids.length; i++) {
+                double similarity = similarity(document, row, centroids[i]);
+                if (similarity > maximum) {
+                    secondMaximum = maximum;
+                    maximum = similarity;
+                    idx = i; // index of closest centroid
+                } else if (similarity > secondMaximum) {
+                    secondMaximum = similarity;
                 }
-                System.out.println();
             }
+
+            bounds.lower[row] = centroids.length > 1 ? distance(secondMaximum) : Double.POSITIVE_INFINITY;
+            if (assignments[row] != idx) {
+                assignment.reassigned++;
+            }
+            assignment.objective += maximum;
+            assignments[row] = idx;
+            cosineSimilarities[row] = maximum;
         }
 
-        return centroids;
+        return assignment;
+    }
+
+    /**
+     * @return The euclidean distance between two unit vectors with the given cosine similarity
+     */
+    private static double distance(double cosine) {
+        return Math.sqrt(Math.max(0, 2 - 2 * cosine));
+    }
+
+    /**
+     * Compute the centroids of the clusters given by the assignments. The
+     * documents are grouped by cluster, then the clusters are summed up in
+     * parallel, each directly into its centroid array.
+     *
+     * @param assignments The cluster of each document
+     * @param centroids   The arrays to store the unit length centroids in
+     * @param threads     The number of threads
+     */
+    private void recomputeCentroids(int[] assignments, double[][] centroids, int threads) {
+        // Counting sort of the documents by cluster, documents stay in row order
+        int[] clusterStarts = new int[numOfClusters + 1];
+        for (int cluster : assignments) {
+            clusterStarts[cluster + 1]++;
+        }
+        for (int i = 0; i < numOfClusters; i++) {
+            clusterStarts[i + 1] += clusterStarts[i];
+        }
+        int[] next = Arrays.copyOf(clusterStarts, numOfClusters);
+        int[] docs = new int[assignments.length];
+        for (int row = 0; row < assignments.length; row++) {
+            docs[next[assignments[row]]++] = row;
+        }
+
+        ParallelUtils.forEachRange(numOfClusters, threads, (from, to) -> {
+            RowBuffer document = new RowBuffer();
+            for (int i = from; i < to; i++) {
+                double[] centroid = centroids[i];
+                Arrays.fill(centroid, 0);
+                for (int j = clusterStarts[i]; j < clusterStarts[i + 1]; j++) {
+                    documentVectors.copyRow(docs[j], document);
+                    VectorUtils.addTo(centroid, document, inverseNorms[docs[j]]);
+                }
+
+                // Normalize to unit vector, the mean has the same direction as the sum
+                double norm = VectorUtils.norm(centroid);
+                if (norm > 0) {
+                    for (int j = 0; j < centroid.length; j++) {
+                        centroid[j] /= norm;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @param document The buffered row of the document
+     * @return The cosine similarity of a document and a unit length centroid
+     */
+    private double similarity(RowBuffer document, int row, double[] centroid) {
+        return VectorUtils.dotProduct(document, centroid) * inverseNorms[row];
+    }
+
+    /**
+     * Add the normalized vector of a document to a dense vector.
+     */
+    private void addTo(double[] vector, int row) {
+        VectorUtils.addTo(vector, documentVectors, row, inverseNorms[row]);
     }
 
-    private double norm(SparseVector v) {
-        // Euclidean norm in la4j uses BigDecimal, which has a lot of overhead.
-        return Math.sqrt(v.innerProduct(v));
+    /**
+     * Distance bounds of the bounded assignment: per document a lower bound
+     * on the distance to all centroids but the assigned one, and per centroid
+     * the distance it moved in the last iteration.
+     */
+    private class Bounds {
+        private final double[] lower;
+        private final double[] drifts;
+        private double maxDrift;
+        private double secondMaxDrift;
+        private int maxDriftCentroid;
+
+        private Bounds(int numOfDocs, int numOfClusters) {
+            lower = new double[numOfDocs];
+            drifts = new double[numOfClusters];
+        }
+
+        /**
+         * The largest drift of the centroids other than the given centroid.
+         */
+        private double maxDriftExcept(int centroid) {
+            return centroid == maxDriftCentroid ? secondMaxDrift : maxDrift;
+        }
+
+        private void computeDrifts(double[][] oldCentroids, double[][] newCentroids, int threads) {
+            ParallelUtils.forEachRange(drifts.length, threads, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    double[] oldCentroid = oldCentroids[i];
+                    double[] newCentroid = newCentroids[i];
+
+                    double squaredDistance = 0;
+                    double oldSquaredNorm = 0;
+                    double newSquaredNorm = 0;
+                    for (int j = 0; j < oldCentroid.length; j++) {
+                        double difference = oldCentroid[j] - newCentroid[j];
+                        squaredDistance += difference * difference;
+                        oldSquaredNorm += oldCentroid[j] * oldCentroid[j];
+                        newSquaredNorm += newCentroid[j] * newCentroid[j];
+                    }
+
+                    // The centroid of an empty cluster is a zero vector, all documents have
+                    // distance sqrt(2) to it. Distances are at most 2 when it appears or disappears.
+                    if (oldSquaredNorm == 0 ^ newSquaredNorm == 0) {
+                        drifts[i] = 2;
+                    } else {
+                        drifts[i] = Math.sqrt(squaredDistance);
+                    }
+                }
+            });
+
+            maxDrift = 0;
+            secondMaxDrift = 0;
+            maxDriftCentroid = -1;
+            for (int i = 0; i < drifts.length; i++) {
+                if (drifts[i] > maxDrift) {
+                    secondMaxDrift = maxDrift;
+                    maxDrift = drifts[i];
+                    maxDriftCentroid = i;
+                } else if (drifts[i] > secondMaxDrift) {
+                    secondMaxDrift = drifts[i];
+                }
+            }
+        }
     }
 
-    private void normalizeDocumentVectors(Matrix documentVectors) {
-        for (int i = 0; i < documentVectors.rows(); i++) {
-            SparseVector doc = documentVectors.getRow(i).toSparseVector();
-            documentVectors.setRow(i, doc.divide(norm(doc)));
+    /**
+     * The partial result of the assignment step for a range of documents.
+     */
+    private static class Assignment {
+        private double objective;
+        private int reassigned;
+
+        private Assignment merge(Assignment other) {
+            objective += other.objective;
+            reassigned += other.reassigned;
+            return this;
         }
     }
 }
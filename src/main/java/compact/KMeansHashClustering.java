@@ -1,9 +1,6 @@
 package compact;
 
-import com.carrotsearch.hppc.BitSet;
-import gnu.trove.list.TDoubleList;
 import gnu.trove.list.TIntList;
-import gnu.trove.list.array.TDoubleArrayList;
 import gnu.trove.list.array.TIntArrayList;
 import org.apache.commons.math3.util.Pair;
 
@@ -23,38 +20,106 @@ public class KMeansHashClustering {
 
     private final Random random;
 
-    private static double hammingDistance;
+    private final int numOfThreads;
 
-    private final int NUM_OF_ITER = 3;
+    private StoppingPolicy stoppingPolicy = StoppingPolicy.DEFAULT;
+
+    private IterationListener listener = (iteration, objective, reassigned) -> { };
+
+    private Seeding seeding = Seeding.RANDOM;
 
     public KMeansHashClustering(int numOfClusters, HashedDocuments documentVectors, Random random) {
+        this(numOfClusters, documentVectors, random, 1);
+    }
+
+    /**
+     * @param numOfThreads The number of threads used in the assignment step
+     */
+    public KMeansHashClustering(int numOfClusters, HashedDocuments documentVectors, Random random, int numOfThreads) {
         this.numOfClusters = numOfClusters;
         this.documentVectors = documentVectors;
         this.random = random;
+        this.numOfThreads = numOfThreads;
+    }
+
+    public void setSeeding(Seeding seeding) {
+        this.seeding = seeding;
+    }
+
+    public void setStoppingPolicy(StoppingPolicy stoppingPolicy) {
+        this.stoppingPolicy = stoppingPolicy;
+    }
+
+    /**
+     * @param listener Receives the average normalized Hamming distance of each iteration
+     */
+    public void setIterationListener(IterationListener listener) {
+        this.listener = listener;
     }
 
     /**
-     * Create several clusters to decide for best one based on cosine similarity
-     * of vectors to centroids.
+     * Create several clusters to decide for best one based on the Hamming
+     * distance of vectors to centroids. The clusterings run concurrently over
+     * the shared document hashes, the threads are divided over the clusterings.
+     * Each clustering has its own random number generator, seeded from the
+     * random number generator of this instance. The listener receives the
+     * iterations of all clusterings, possibly from several threads.
      *
      * @param n Number of cluster calculations
-     * @return Best clustering
+     * @return Best clustering, the first one of equally good clusterings
      * @throws IOException
      */
-    public List<TIntList> nClusters(Integer n) throws IOException {
+    public KMeansResult<long[]> nClusters(int n) throws IOException {
+        checkClusterable();
 
-        double minimum = Double.MAX_VALUE;
-        List<TIntList> bestCluster = new ArrayList<>();
-        List<TIntList> cluster;
+        Random[] randoms = new Random[n];
         for (int i = 0; i < n; i++) {
-            cluster = clusters(centroids());
-            if (hammingDistance < minimum) {
-                minimum = hammingDistance;
-                bestCluster = cluster;
+            randoms[i] = new Random(random.nextLong());
+        }
+
+        int restartThreads = Math.max(1, Math.min(n, numOfThreads));
+        int threadsPerRestart = Math.max(1, numOfThreads / restartThreads);
+
+        List<KMeansResult<long[]>> results = new ArrayList<>(Collections.nCopies(n, null));
+        ParallelUtils.forEachRange(n, restartThreads, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                results.set(i, cluster(randoms[i], threadsPerRestart));
+            }
+        });
+
+        KMeansResult<long[]> best = null;
+        for (KMeansResult<long[]> result : results) {
+            if (best == null || result.objective() < best.objective()) {
+                best = result;
             }
         }
 
-        return bestCluster;
+        return best;
+    }
+
+    /**
+     * Cluster the documents once: compute the centroids and assign each
+     * document to its closest centroid.
+     *
+     * @return The clustering
+     * @throws IOException
+     */
+    public KMeansResult<long[]> cluster() throws IOException {
+        checkClusterable();
+        return cluster(random, numOfThreads);
+    }
+
+    private KMeansResult<long[]> cluster(Random random, int threads) {
+        long[] centroids = iterate(random, threads);
+
+        int numOfDocs = documentVectors.size();
+        int[] assignments = new int[numOfDocs];
+        double[] hammingDistances = new double[numOfDocs];
+        Assignment assignment = ParallelUtils.reduceRanges(numOfDocs, threads,
+                (from, to) -> assign(centroids, from, to, assignments, hammingDistances),
+                Assignment::merge);
+
+        return new KMeansResult<>(numOfClusters, assignments, centroids, assignment.objective / numOfDocs);
     }
 
     /**
@@ -62,37 +127,41 @@ public class KMeansHashClustering {
      * the vectors in the matrix to the centroids and assign vectors to closest
      * centroid. Each cluster contains row indices of the doc vectors in the cluster.
      *
-     * @param centroids The list of centroid vectors
+     * @param centroids The centroid hashes, packed like the document hashes
      * @return The clusters as list of vector idxs
      */
-    public List<TIntList> clusters(List<BitSet> centroids) {
+    public List<TIntList> clusters(long[] centroids) {
 
-        double bitSetSize = documentVectors.getHashLength();
+        int words = documentVectors.words();
+        long[] documentHashes = documentVectors.hashes();
 
-        List<TIntList> clusters = new ArrayList<>(centroids.size());
+        List<TIntList> clusters = new ArrayList<>(numOfClusters);
         for (int i = 0; i < numOfClusters; i++) {
             clusters.add(new TIntArrayList());
         }
 
-        List<BitSet> documentHashes = documentVectors.getDocumentHashes();
-
-        for (int row = 0; row < documentHashes.size(); row++) {
-            double minDistance = Double.MAX_VALUE;
-            int closesCentroidIdx = 0;
-
-            for (int i = 0; i < centroids.size(); i++) {
+        int[] assignments = new int[documentVectors.size()];
+        ParallelUtils.forEachRange(documentVectors.size(), numOfThreads, (from, to) -> {
+            for (int row = from; row < to; row++) {
+                int minDistance = Integer.MAX_VALUE;
+                int closesCentroidIdx = 0;
 
-                BitSet hammingBits = (BitSet) documentHashes.get(row).clone();
-                hammingBits.xor(centroids.get(i)); // which bits are different?
-                double distance = (hammingBits.cardinality()/bitSetSize); // number of bits set to true/ Hamming distance
+                for (int i = 0; i < numOfClusters; i++) {
+                    // number of bits which are different/ Hamming distance
+                    int distance = HashedDocuments.distance(documentHashes, row * words, centroids, i * words, words);
 
-                if (distance < minDistance) {
-                    minDistance = distance;
-                    closesCentroidIdx = i;
+                    if (distance < minDistance) {
+                        minDistance = distance;
+                        closesCentroidIdx = i;
+                    }
                 }
+
+                assignments[row] = closesCentroidIdx;
             }
+        });
 
-            clusters.get(closesCentroidIdx).add(row);
+        for (int row = 0; row < assignments.length; row++) {
+            clusters.get(assignments[row]).add(row);
         }
 
         return clusters;
@@ -102,113 +171,202 @@ public class KMeansHashClustering {
      * Cluster data by k-means clustering. Calculate euclidean distance from all
      * document vectors to all centroids, assign each to their closest centroid.
      * When all documents are assigned to a centroid, readjust centroids.
+     * Repeat until the stopping policy is met.
      *
-     * @return The clusters
+     * @return The centroid hashes, numOfClusters x words packed longs
      * @throws IOException
      */
 
-    public List<BitSet> centroids() throws IOException {
-
-        List<BitSet> documentHashes = documentVectors.getDocumentHashes();
+    public long[] centroids() throws IOException {
+        checkClusterable();
+        return iterate(random, numOfThreads);
+    }
 
-        if (documentHashes.isEmpty()) {
+    private void checkClusterable() throws IOException {
+        if (documentVectors.size() == 0) {
             throw new IOException("Trying to extract clusters from zero matrix");
         }
 
-        if (documentHashes.size() < numOfClusters) {
+        if (documentVectors.size() < numOfClusters) {
             throw new IOException("Trying to extract more clusters than matrix has elements");
         }
+    }
 
-//        int bitSetSize = (int) documentHashes.get(0).size();
-        int bitSetSize = documentVectors.getHashLength();
-        int numOfDocs = documentHashes.size();
-
-        // Choose random centroids from document vectors
-        Set<Integer> seedDocs = new HashSet<>();
-        while (seedDocs.size() < numOfClusters) {
-            seedDocs.add(this.random.nextInt(numOfDocs));
-        }
+    private long[] iterate(Random random, int threads) {
+        long[] documentHashes = documentVectors.hashes();
 
-        List<BitSet> centroids = new ArrayList<>();
-        for (int doc : seedDocs) {
-            centroids.add(documentHashes.get(doc));
-        }
+        int words = documentVectors.words();
+        int numOfDocs = documentVectors.size();
 
-        for (int iter = 0; iter < NUM_OF_ITER; iter++) {
-            double objective = 0;
-            TDoubleList hammingDistances = new TDoubleArrayList();
+        // Choose centroids from document vectors, the cost of a document is its Hamming distance to a seed
+        int[] seedDocs = KMeansSeeding.seeds(seeding, new KMeansSeeding.Cost() {
+            @Override
+            public int size() {
+                return numOfDocs;
+            }
 
-            int[] numOfClusterElements = new int[numOfClusters];
-            List<int[]> adjustedCentroids = new ArrayList<>();
-            for (int i = 0; i < centroids.size(); i++) {
-                adjustedCentroids.add(new int[bitSetSize]);
+            @Override
+            public double cost(int doc, int seed) {
+                return documentVectors.distance(doc, seed);
             }
+        }, numOfClusters, random, threads);
+
+        long[] centroids = new long[numOfClusters * words];
+        for (int seed = 0; seed < numOfClusters; seed++) {
+            System.arraycopy(documentHashes, seedDocs[seed] * words, centroids, seed * words, words);
+        }
 
+        int[] assignments = new int[numOfDocs];
+        Arrays.fill(assignments, -1);
+        double[] hammingDistances = new double[numOfDocs];
+        int[] clusterStarts = new int[numOfClusters + 1];
+        int[] members = new int[numOfDocs];
+
+        double previousObjective = Double.POSITIVE_INFINITY;
+        int iter = 0;
+        boolean stop = false;
+        while (!stop) {
+            iter++;
             System.err.println("Iterating...");
 
             // Assign vectors to their closest centroid
-            for (int row = 0; row < numOfDocs; row++) {
+            long[] currentCentroids = centroids;
+            Assignment assignment = ParallelUtils.reduceRanges(numOfDocs, threads,
+                    (from, to) -> assign(currentCentroids, from, to, assignments, hammingDistances),
+                    Assignment::merge);
 
-                double minimum = Double.MAX_VALUE;
-                int idx = -1;
-                BitSet bitSetRow = documentHashes.get(row); //the current row
+            System.err.println("Recomputing centroids...");
 
-                // Compute distance between current row and centroids to find closest centroid
-                for (int i = 0; i < centroids.size(); i++) {
+            // Group the documents by cluster, so that each centroid is computed from its members only
+            for (int i = 0; i < numOfClusters; i++) {
+                clusterStarts[i + 1] = clusterStarts[i] + assignment.numOfClusterElements[i];
+            }
+            int[] next = Arrays.copyOf(clusterStarts, numOfClusters);
+            for (int doc = 0; doc < numOfDocs; doc++) {
+                members[next[assignments[doc]]++] = doc;
+            }
 
-                    BitSet hammingBits = (BitSet) bitSetRow.clone();
-                    hammingBits.xor(centroids.get(i));
-                    double distance = (hammingBits.cardinality() / (double) bitSetSize);
+            long[] newCentroids = new long[numOfClusters * words];
+            ParallelUtils.forEachRange(numOfClusters, threads,
+                    (from, to) -> computeCentroids(newCentroids, from, to, clusterStarts, members));
+            centroids = newCentroids;
 
-                    if (distance < minimum) {
-                        minimum = distance;
-                        idx = i; // index of closest centroid
-                    }
-                }
+            double hammingDistance = assignment.objective / numOfDocs;
+            listener.iteration(iter, hammingDistance, assignment.reassigned);
 
-                // Track how often bit at position bitIdx is set to 1
-                int[] rowBitFreqs = adjustedCentroids.get(idx);
-                // For all set bits (true/1), add 1 to respective adjustedCentroid int[]
-                for (int bitIdx = bitSetRow.nextSetBit(0); bitIdx >= 0; bitIdx = bitSetRow.nextSetBit(bitIdx+1)) {
-                    rowBitFreqs[bitIdx]++;
-                    if (bitIdx == Integer.MAX_VALUE) {
-                        break; // or (i+1) would overflow
-                    }
+            stop = stoppingPolicy.stop(iter, previousObjective - hammingDistance, assignment.reassigned, numOfDocs);
+            previousObjective = hammingDistance;
+        }
+
+        listener.finished(iter, hammingDistances);
+
+        return centroids;
+    }
+
+    /**
+     * Assign the documents [from, to) to their closest centroid.
+     *
+     * @param centroids        The centroid hashes
+     * @param assignments      Stores the closest centroid of each document
+     * @param hammingDistances Stores the normalized distance to the closest centroid of each document
+     * @return The number of documents per centroid, the sum of the distances
+     * and the number of documents that changed cluster
+     */
+    private Assignment assign(long[] centroids, int from, int to, int[] assignments, double[] hammingDistances) {
+        long[] documentHashes = documentVectors.hashes();
+        int bitSetSize = documentVectors.getHashLength();
+        int words = documentVectors.words();
+
+        Assignment assignment = new Assignment(numOfClusters);
+
+        for (int row = from; row < to; row++) {
+
+            int minimum = Integer.MAX_VALUE;
+            int idx = -1;
+            int rowOffset = row * words; //the current row
+
+            // Compute distance between current row and centroids to find closest centroid
+            for (int i = 0; i < numOfClusters; i++) {
+                int distance = HashedDocuments.distance(documentHashes, rowOffset, centroids, i * words, words);
+
+                if (distance < minimum) {
+                    minimum = distance;
+                    idx = i; // index of closest centroid
                 }
-                numOfClusterElements[idx]++;
-                objective += minimum;
-                hammingDistances.add(minimum);
             }
 
-            System.err.println("Recomputing centroids...");
+            if (assignments[row] != idx) {
+                assignment.reassigned++;
+            }
+            assignment.numOfClusterElements[idx]++;
+            double distance = minimum / (double) bitSetSize;
+            assignment.objective += distance;
+            assignments[row] = idx;
+            hammingDistances[row] = distance;
+        }
 
-            for (int i = 0; i < adjustedCentroids.size(); i++) {
-                // Compute centroids
-                int[] adjustedCentroid = adjustedCentroids.get(i);
-                int clusterElements = numOfClusterElements[i];
-                centroids.set(i, new BitSet(bitSetSize));
-                for (int j = 0; j < adjustedCentroid.length; j++) {
-                    // If bit at position j is more often set to 1 than not, set it in centroid (ties go towards 0)
-                    if (clusterElements > 0) {
-                        if (adjustedCentroid[j] > clusterElements/2) { //int tieCounter: increase whenever there is a tie; once set bit to 1, other time set bit to 0
-                            centroids.get(i).set(j);
-                        }
+        return assignment;
+    }
+
+    /**
+     * Compute the centroids [from, to) as the majority vote over the bits of
+     * their members. One counter array is used for all centroids of the range.
+     *
+     * @param centroids     Stores the centroid hashes
+     * @param clusterStarts The offset of the members of each centroid in members
+     * @param members       The documents grouped by centroid
+     */
+    private void computeCentroids(long[] centroids, int from, int to, int[] clusterStarts, int[] members) {
+        long[] documentHashes = documentVectors.hashes();
+        int bitSetSize = documentVectors.getHashLength();
+        int words = documentVectors.words();
+
+        int[] bitCounts = new int[bitSetSize];
+        for (int i = from; i < to; i++) {
+            int clusterElements = clusterStarts[i + 1] - clusterStarts[i];
+            if (clusterElements == 0) {
+                continue;
+            }
+
+            // For all set bits (true/1), add 1 to respective counts of the centroid
+            Arrays.fill(bitCounts, 0);
+            for (int m = clusterStarts[i]; m < clusterStarts[i + 1]; m++) {
+                int rowOffset = members[m] * words;
+                for (int word = 0; word < words; word++) {
+                    for (long bits = documentHashes[rowOffset + word]; bits != 0; bits &= bits - 1) {
+                        bitCounts[(word << 6) + Long.numberOfTrailingZeros(bits)]++;
                     }
                 }
             }
 
-            hammingDistance = objective / numOfDocs;
-            System.out.printf("Average hammingDistance %s: %s%n", iter+1, hammingDistance);
-            if (iter == NUM_OF_ITER-1) {
-                System.out.println("Single hamming distances ("+ bitSetSize+" bits):");
-                for (int i = 0; i < hammingDistances.size(); i++) {
-                    System.out.println(hammingDistances.get(i));
+            for (int j = 0; j < bitSetSize; j++) {
+                // If bit at position j is more often set to 1 than not, set it in centroid (ties go towards 0)
+                if (bitCounts[j] > clusterElements/2) { //int tieCounter: increase whenever there is a tie; once set bit to 1, other time set bit to 0
+                    centroids[i * words + (j >>> 6)] |= 1L << j;
                 }
-                System.out.println();
-                //System.out.printf("Single hamming distances ("+ bitSetSize+" bits):\n"+hammingDistances.toString()+"\n");
             }
         }
+    }
 
-        return centroids;
+    /**
+     * The partial result of the assignment step for a range of documents.
+     */
+    private static class Assignment {
+        private final int[] numOfClusterElements;
+        private double objective;
+        private int reassigned;
+
+        private Assignment(int numOfClusters) {
+            numOfClusterElements = new int[numOfClusters];
+        }
+
+        private Assignment merge(Assignment other) {
+            for (int i = 0; i < numOfClusterElements.length; i++) {
+                numOfClusterElements[i] += other.numOfClusterElements[i];
+            }
+            objective += other.objective;
+            reassigned += other.reassigned;
+            return this;
+        }
     }
 }
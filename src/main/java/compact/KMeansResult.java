@@ -0,0 +1,67 @@
+package compact;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of one k-means clustering: the centroids, the closest centroid
+ * of each document and the average objective of the documents over their
+ * closest centroid.
+ *
+ * @param <C> The centroid representation, dense vectors or packed hashes
+ * @author Patricia Fischer
+ */
+public class KMeansResult<C> {
+
+    private final int numOfClusters;
+
+    private final int[] assignments;
+
+    private final C centroids;
+
+    private final double objective;
+
+    public KMeansResult(int numOfClusters, int[] assignments, C centroids, double objective) {
+        this.numOfClusters = numOfClusters;
+        this.assignments = assignments;
+        this.centroids = centroids;
+        this.objective = objective;
+    }
+
+    /**
+     * @return The closest centroid of each document
+     */
+    public int[] assignments() {
+        return assignments;
+    }
+
+    public C centroids() {
+        return centroids;
+    }
+
+    /**
+     * @return The average cosine similarity or Hamming distance of the documents to their closest centroid
+     */
+    public double objective() {
+        return objective;
+    }
+
+    /**
+     * @return The clusters as lists of document indices
+     */
+    public List<TIntList> clusters() {
+        List<TIntList> clusters = new ArrayList<>(numOfClusters);
+        for (int i = 0; i < numOfClusters; i++) {
+            clusters.add(new TIntArrayList());
+        }
+
+        for (int doc = 0; doc < assignments.length; doc++) {
+            clusters.get(assignments[doc]).add(doc);
+        }
+
+        return clusters;
+    }
+}
@@ -0,0 +1,275 @@
+package compact;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Choose the documents that become the initial k-means centroids. The
+ * clustering engines provide the cost between two documents, the squared
+ * distance for cosine k-means and the Hamming distance for hashes.
+ *
+ * @author Patricia Fischer
+ */
+public class KMeansSeeding {
+
+    private static final int OVERSAMPLING_FACTOR = 2; // candidates per round: 2k
+
+    private static final int ROUNDS = 5;
+
+    private static final int SAMPLING_BLOCK = 4096; // documents per random number generator in k-means||
+
+    /**
+     * The cost of a document with respect to a seed, 0 for identical documents.
+     */
+    public interface Cost {
+        int size();
+
+        double cost(int doc, int seed);
+    }
+
+    private KMeansSeeding() {
+    }
+
+    /**
+     * @param seeding      The seeding method
+     * @param cost         The cost between documents
+     * @param k            The number of seeds
+     * @param random       The random number generator
+     * @param numOfThreads The number of threads used for the cost computations
+     * @return The seed documents
+     */
+    public static int[] seeds(Seeding seeding, Cost cost, int k, Random random, int numOfThreads) {
+        switch (seeding) {
+            case KMEANS_PLUS_PLUS:
+                return kMeansPlusPlus(cost, allDocuments(cost.size()), null, k, random, numOfThreads);
+            case KMEANS_PARALLEL:
+                return kMeansParallel(cost, k, random, numOfThreads);
+            default:
+                return randomSeeds(cost.size(), k, random);
+        }
+    }
+
+    /**
+     * Choose k distinct documents uniformly at random.
+     */
+    public static int[] randomSeeds(int numOfDocs, int k, Random random) {
+        Set<Integer> seedDocs = new HashSet<>();
+        while (seedDocs.size() < k) {
+            seedDocs.add(random.nextInt(numOfDocs));
+        }
+
+        int[] seeds = new int[k];
+        int seed = 0;
+        for (int doc : seedDocs) {
+            seeds[seed++] = doc;
+        }
+        return seeds;
+    }
+
+    /**
+     * k-means++ over a set of documents, optionally weighted.
+     *
+     * @param docs    The documents to choose from
+     * @param weights The weight of each document, null for equal weights
+     */
+    static int[] kMeansPlusPlus(Cost cost, int[] docs, double[] weights, int k, Random random, int numOfThreads) {
+        double[] minCosts = new double[docs.length];
+        Arrays.fill(minCosts, Double.POSITIVE_INFINITY);
+
+        int[] seeds = new int[k];
+        int chosen = weights == null ? random.nextInt(docs.length) : sample(weights, null, sum(weights), random);
+        seeds[0] = docs[chosen];
+        for (int s = 1; s < k; s++) {
+            int seed = seeds[s - 1];
+            int seedIdx = chosen;
+            double total = ParallelUtils.reduceRanges(docs.length, numOfThreads, (from, to) -> {
+                double sum = 0;
+                for (int i = from; i < to; i++) {
+                    double c = i == seedIdx ? 0 : cost.cost(docs[i], seed);
+                    if (c < minCosts[i]) {
+                        minCosts[i] = c;
+                    }
+                    sum += weights == null ? minCosts[i] : weights[i] * minCosts[i];
+                }
+                return sum;
+            }, Double::sum);
+
+            chosen = sample(minCosts, weights, total, random);
+            if (chosen < 0) {
+                // All documents coincide with a seed, fall back to a document that is not a seed yet
+                chosen = unchosen(seeds, s, docs, random);
+            }
+            seeds[s] = docs[chosen];
+        }
+
+        return seeds;
+    }
+
+    /**
+     * k-means||: sample candidates in a fixed number of rounds, then reduce the
+     * candidates, weighted by the number of documents closest to them, to k
+     * seeds with k-means++.
+     *
+     * Candidates are sampled in parallel over blocks of documents. Every block
+     * has its own random number generator, split from one generator per round,
+     * so the candidates do not depend on the number of threads.
+     */
+    static int[] kMeansParallel(Cost cost, int k, Random random, int numOfThreads) {
+        int numOfDocs = cost.size();
+        double oversampling = (double) OVERSAMPLING_FACTOR * k;
+
+        double[] minCosts = new double[numOfDocs];
+        Arrays.fill(minCosts, Double.POSITIVE_INFINITY);
+        int[] nearest = new int[numOfDocs]; // index of the closest candidate
+        boolean[] isCandidate = new boolean[numOfDocs];
+
+        TIntArrayList candidates = new TIntArrayList();
+        int first = random.nextInt(numOfDocs);
+        candidates.add(first);
+        isCandidate[first] = true;
+        double total = updateCosts(cost, candidates, 0, minCosts, nearest, numOfThreads);
+
+        for (int round = 0; round < ROUNDS && total > 0; round++) {
+            int newFrom = candidates.size();
+            candidates.addAll(sampleCandidates(minCosts, isCandidate, oversampling / total, random, numOfThreads));
+            for (int i = newFrom; i < candidates.size(); i++) {
+                isCandidate[candidates.get(i)] = true;
+            }
+            total = updateCosts(cost, candidates, newFrom, minCosts, nearest, numOfThreads);
+        }
+
+        // Too few candidates, e.g. when many documents are identical
+        while (candidates.size() < k) {
+            int doc = random.nextInt(numOfDocs);
+            if (!isCandidate[doc]) {
+                candidates.add(doc);
+                isCandidate[doc] = true;
+            }
+        }
+
+        double[] weights = new double[candidates.size()];
+        for (int doc = 0; doc < numOfDocs; doc++) {
+            weights[nearest[doc]]++;
+        }
+
+        return kMeansPlusPlus(cost, candidates.toArray(), weights, k, random, numOfThreads);
+    }
+
+    /**
+     * Sample each document that is not a candidate yet with probability
+     * scale * cost.
+     *
+     * @return The sampled documents in increasing order
+     */
+    private static TIntArrayList sampleCandidates(double[] minCosts, boolean[] isCandidate, double scale,
+                                                  Random random, int numOfThreads) {
+        int numOfBlocks = (minCosts.length + SAMPLING_BLOCK - 1) / SAMPLING_BLOCK;
+        SplittableRandom root = new SplittableRandom(random.nextLong());
+        SplittableRandom[] generators = new SplittableRandom[numOfBlocks];
+        for (int block = 0; block < numOfBlocks; block++) {
+            generators[block] = root.split();
+        }
+
+        return ParallelUtils.reduceRanges(numOfBlocks, numOfThreads, (fromBlock, toBlock) -> {
+            TIntArrayList sampled = new TIntArrayList();
+            for (int block = fromBlock; block < toBlock; block++) {
+                SplittableRandom generator = generators[block];
+                int to = Math.min(minCosts.length, (block + 1) * SAMPLING_BLOCK);
+                for (int doc = block * SAMPLING_BLOCK; doc < to; doc++) {
+                    if (!isCandidate[doc] && generator.nextDouble() < scale * minCosts[doc]) {
+                        sampled.add(doc);
+                    }
+                }
+            }
+            return sampled;
+        }, (left, right) -> {
+            left.addAll(right);
+            return left;
+        });
+    }
+
+    /**
+     * Lower the cost of all documents to their closest candidate, given the
+     * new candidates from the given index on.
+     *
+     * @return The total cost
+     */
+    private static double updateCosts(Cost cost, TIntArrayList candidates, int newFrom, double[] minCosts, int[] nearest, int numOfThreads) {
+        int[] newCandidates = candidates.toArray(newFrom, candidates.size() - newFrom);
+        return ParallelUtils.reduceRanges(minCosts.length, numOfThreads, (from, to) -> {
+            double sum = 0;
+            for (int doc = from; doc < to; doc++) {
+                for (int i = 0; i < newCandidates.length; i++) {
+                    double c = doc == newCandidates[i] ? 0 : cost.cost(doc, newCandidates[i]);
+                    if (c < minCosts[doc]) {
+                        minCosts[doc] = c;
+                        nearest[doc] = newFrom + i;
+                    }
+                }
+                sum += minCosts[doc];
+            }
+            return sum;
+        }, Double::sum);
+    }
+
+    /**
+     * @return A document index chosen with probability proportional to its (weighted)
+     * cost, -1 if the total cost is 0
+     */
+    private static int sample(double[] costs, double[] weights, double total, Random random) {
+        if (!(total > 0)) {
+            return -1;
+        }
+
+        double threshold = random.nextDouble() * total;
+        int last = -1;
+        for (int i = 0; i < costs.length; i++) {
+            double c = weights == null ? costs[i] : weights[i] * costs[i];
+            if (c > 0) {
+                threshold -= c;
+                last = i;
+                if (threshold < 0) {
+                    return i;
+                }
+            }
+        }
+
+        // Rounding errors in the total
+        return last;
+    }
+
+    private static double sum(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    private static int unchosen(int[] seeds, int numOfSeeds, int[] docs, Random random) {
+        Set<Integer> chosen = new HashSet<>();
+        for (int s = 0; s < numOfSeeds; s++) {
+            chosen.add(seeds[s]);
+        }
+
+        while (true) {
+            int i = random.nextInt(docs.length);
+            if (!chosen.contains(docs[i])) {
+                return i;
+            }
+        }
+    }
+
+    private static int[] allDocuments(int numOfDocs) {
+        int[] docs = new int[numOfDocs];
+        for (int i = 0; i < numOfDocs; i++) {
+            docs[i] = i;
+        }
+        return docs;
+    }
+}
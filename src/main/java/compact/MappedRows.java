@@ -0,0 +1,139 @@
+package compact;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only sparse rows memory-mapped from the CSR blocks of a file written
+ * by BinaryStorage. The arrays are not loaded onto the heap: the operating
+ * system pages them in on access, and processes mapping the same file share
+ * one copy in the page cache.
+ *
+ * A mapped buffer holds at most 2GB, so each array is mapped in chunks of
+ * 1GB and positions are split into a chunk and an offset within the chunk.
+ *
+ * @author Patricia Fischer
+ */
+public class MappedRows implements SparseRows {
+
+    private static final int CHUNK_BYTES_SHIFT = 30;
+
+    private static final int INT_SHIFT = CHUNK_BYTES_SHIFT - 2;
+
+    private static final int INT_MASK = (1 << INT_SHIFT) - 1;
+
+    private static final int DOUBLE_SHIFT = CHUNK_BYTES_SHIFT - 3;
+
+    private static final int DOUBLE_MASK = (1 << DOUBLE_SHIFT) - 1;
+
+    private final int rows;
+
+    private final int columns;
+
+    private final int cardinality;
+
+    private final IntBuffer[] rowPointers;
+
+    private final IntBuffer[] columnIndices;
+
+    private final DoubleBuffer[] values;
+
+    private MappedRows(int rows, int columns, int cardinality, IntBuffer[] rowPointers, IntBuffer[] columnIndices, DoubleBuffer[] values) {
+        this.rows = rows;
+        this.columns = columns;
+        this.cardinality = cardinality;
+        this.rowPointers = rowPointers;
+        this.columnIndices = columnIndices;
+        this.values = values;
+    }
+
+    /**
+     * Map the rows of a storage file. The extents of the blocks are checked
+     * against the size of the file before they are mapped. The file must not
+     * be truncated or written in place while the rows are in use, replacing
+     * it with BinaryStorage.write() is safe.
+     *
+     * @param file The file written by BinaryStorage
+     * @return The mapped rows
+     * @throws IOException If the file is not a storage file of a supported version
+     */
+    public static MappedRows map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            BinaryStorage.Header header = BinaryStorage.Header.read(channel);
+            int rows = header.rows();
+            int cardinality = header.cardinality();
+
+            IntBuffer[] rowPointers = mapInts(channel, header.offset(BinaryStorage.ROW_POINTERS), rows + 1);
+            IntBuffer[] columnIndices = mapInts(channel, header.offset(BinaryStorage.COLUMN_INDICES), cardinality);
+            DoubleBuffer[] values = mapDoubles(channel, header.offset(BinaryStorage.VALUES), cardinality);
+
+            return new MappedRows(rows, header.columns(), cardinality, rowPointers, columnIndices, values);
+        }
+    }
+
+    private static IntBuffer[] mapInts(FileChannel channel, long offset, int length) throws IOException {
+        IntBuffer[] chunks = new IntBuffer[numOfChunks(length, INT_SHIFT)];
+        for (int chunk = 0; chunk < chunks.length; chunk++) {
+            long from = (long) chunk << INT_SHIFT;
+            long size = Math.min(1L << INT_SHIFT, length - from);
+            chunks[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, offset + 4 * from, 4 * size)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        }
+        return chunks;
+    }
+
+    private static DoubleBuffer[] mapDoubles(FileChannel channel, long offset, int length) throws IOException {
+        DoubleBuffer[] chunks = new DoubleBuffer[numOfChunks(length, DOUBLE_SHIFT)];
+        for (int chunk = 0; chunk < chunks.length; chunk++) {
+            long from = (long) chunk << DOUBLE_SHIFT;
+            long size = Math.min(1L << DOUBLE_SHIFT, length - from);
+            chunks[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, offset + 8 * from, 8 * size)
+                    .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        }
+        return chunks;
+    }
+
+    private static int numOfChunks(int length, int shift) {
+        return (int) (((long) length + (1L << shift) - 1) >>> shift);
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public int columns() {
+        return columns;
+    }
+
+    @Override
+    public int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    public int rowStart(int row) {
+        return rowPointers[row >>> INT_SHIFT].get(row & INT_MASK);
+    }
+
+    @Override
+    public int rowEnd(int row) {
+        return rowStart(row + 1);
+    }
+
+    @Override
+    public int columnIndex(int pos) {
+        return columnIndices[pos >>> INT_SHIFT].get(pos & INT_MASK);
+    }
+
+    @Override
+    public double value(int pos) {
+        return values[pos >>> DOUBLE_SHIFT].get(pos & DOUBLE_MASK);
+    }
+}
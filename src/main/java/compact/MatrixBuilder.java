@@ -2,6 +2,8 @@ package compact;
 
 import static compact.ReaderUtils.*;
 import gnu.trove.list.TIntList;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 
 import java.io.File;
 import java.io.IOException;
@@ -18,65 +20,56 @@ public class MatrixBuilder {
 
     private static final Layer LAYER = Layer.LEMMA;  //TOKEN or LEMMA
 
-    public Vocabulary buildVocabulary(String corpus, File directory) throws IOException {
-        String fileExtension = getExtension(corpus);
-        Reader read = getReader(corpus, LAYER);
-        List<File> files = getFiles(corpus, directory, fileExtension);
-
-        Vocabulary vocabulary = new Vocabulary();
+    private final int numOfThreads;
 
-        int filesDone = 0;
-        for (File file : files) {
-            // Extract content of section(s)
-            read.processFile(file);
-            // Process vocabulary of section(s)
-            for (int i = 0; i < read.getSectionIDs().size(); i++) {
-                vocabulary.processSection(read.getSectionIDs().get(i), read.getContent().get(i));
-            }
-            System.err.println(++filesDone);
-        }
-        vocabulary.extractDocumentDates(read.getMetadata());
-
-        // Sentence and token counts for all sections
-        System.out.println("Sentence count, token count");
-        for (Map.Entry<String, List<String>> entry : read.getMetadata().entrySet()) {
-                System.out.println(entry.getValue().get(1) + ", " + entry.getValue().get(2));
-        }
+    public MatrixBuilder() {
+        this(1);
+    }
 
-        return vocabulary;
+    /**
+     * @param numOfThreads The number of threads reading the corpus files, 1 reads sequentially
+     */
+    public MatrixBuilder(int numOfThreads) {
+        this.numOfThreads = numOfThreads;
     }
-    
+
     /**
+     * Read the corpus once: assign token and document indices and collect the
+     * term frequencies of each section in the same sweep. The tf-idf matrix is
+     * assembled at the end, when the final document frequencies are known.
+     *
      * @param corpus     The name of the corpus, either PolMine or taz
      * @param directory  The directory of the data collection
-     * @param vocabulary
-     * @return 
+     * @param vocabulary The (empty) vocabulary to be filled from the corpus
+     * @return The tf-idf matrix
      * @throws IOException
      */
-    public TermDocumentMatrix buildMatrix(String corpus, File directory, Vocabulary vocabulary) throws IOException {
+    public TermDocumentMatrix build(String corpus, File directory, Vocabulary vocabulary) throws IOException {
 
         // Locale change necessary to display doubles with dot, not comma (messes up csv format)
         //Locale.setDefault(Locale.Category.FORMAT, Locale.ENGLISH);
 
         String fileExtension = getExtension(corpus);
-        Reader read = getReader(corpus, LAYER);
         List<File> files = getFiles(corpus, directory, fileExtension);
+        CorpusReader read = new CorpusReader(corpus, LAYER, numOfThreads);
 
-        //Set<Integer> mostFrequent = mostFrequentTokens(vocabulary.tokenCounts(), STOPWORD_LIST_SIZE);
+        //TIntSet mostFrequent = mostFrequentTokens(vocabulary.tokenCounts(), STOPWORD_LIST_SIZE);
         TermDocumentMatrix tdm = new TermDocumentMatrix(vocabulary.documentIndices(), vocabulary.tokenIndices());
 
-        int filesDone = 0;
-        for (File file : files) {
-            // Extract content of section(s)
-            read.processFile(file);
-            // Add term frequencies to matrix
-            for (int i = 0; i < read.getSectionIDs().size(); i++) {
-                tdm.processSection(read.getSectionIDs().get(i), read.getContent().get(i));
-            }
-            System.err.println(++filesDone);
+        // Process vocabulary and term frequencies of section(s)
+        Map<String, List<String>> metadata = read.read(files, (sectionID, wordFrequencies) -> {
+            vocabulary.processSection(sectionID, wordFrequencies);
+            tdm.processSection(sectionID, wordFrequencies);
+        });
+        vocabulary.extractDocumentDates(metadata);
+
+        // Sentence and token counts for all sections
+        System.out.println("Sentence count, token count");
+        for (Map.Entry<String, List<String>> entry : metadata.entrySet()) {
+                System.out.println(entry.getValue().get(1) + ", " + entry.getValue().get(2));
         }
 
-        // Transform term-document matrix into tf-idf matrix
+        // Assemble tf-idf matrix from the collected term frequencies
         System.err.println("Calculating tf-idf matrix...");
         tdm.tfIdf(vocabulary.documentFrequencies());
 
@@ -84,41 +77,173 @@ public class MatrixBuilder {
     }
 
     /**
-     * Find the N most frequent tokens.
+     * Read the corpus to fill the vocabulary only: token and document indices,
+     * document frequencies and dates. No term frequencies are kept, so that
+     * the corpus can afterwards be streamed with streamBatches().
      *
-     * @param tokenFreqs Token frequencies.
-     * @param n          The number of most frequent tokens to find.
-     * @return Most frequent tokens (by index).
+     * @param corpus     The name of the corpus, either PolMine or taz
+     * @param directory  The directory of the data collection
+     * @param vocabulary The (empty) vocabulary to be filled from the corpus
+     * @throws IOException
      */
-    protected static Set<Integer> mostFrequentTokens(TIntList tokenFreqs, int n) {
-        FreqComparator comparator = new FreqComparator(tokenFreqs);
-        BestN<Integer> bestN = new BestN(n, comparator);
+    public void buildVocabulary(String corpus, File directory, Vocabulary vocabulary) throws IOException {
+        List<File> files = getFiles(corpus, directory, getExtension(corpus));
+        CorpusReader read = new CorpusReader(corpus, LAYER, numOfThreads);
 
-        for (int i = 0; i < tokenFreqs.size(); i++) {
-            bestN.add(i);
+        Map<String, List<String>> metadata = read.read(files, vocabulary::processSection);
+        vocabulary.extractDocumentDates(metadata);
+    }
+
+    /**
+     * Read only the files of the corpus that are not in the index yet. The
+     * vocabulary of the index is extended with their sections and the term
+     * frequencies of the sections are written as a new segment. Sections
+     * that were committed to the index before are skipped, repeated sections
+     * of the new files are merged like in a full build. If the update fails, the
+     * vocabulary is reset to the last commit of the index.
+     *
+     * @param corpus    The name of the corpus, either PolMine or taz
+     * @param directory The directory of the data collection
+     * @param index     The index to be updated
+     * @return The number of sections added
+     * @throws IOException
+     */
+    public int update(String corpus, File directory, CorpusIndex index) throws IOException {
+        index.checkWritable();
+        List<File> files = index.newFiles(directory, getFiles(corpus, directory, getExtension(corpus)));
+        if (files.isEmpty()) {
+            System.err.println("No new files");
+            return 0;
+        }
+        CorpusReader read = new CorpusReader(corpus, LAYER, numOfThreads);
+
+        Vocabulary vocabulary = index.vocabulary();
+        StringIndex sectionIndices = new StringIndex();
+        TermDocumentMatrix sections = new TermDocumentMatrix(sectionIndices, vocabulary.tokenIndices());
+        int committed = vocabulary.documentIndices().size();
+
+        try {
+            Map<String, List<String>> metadata = read.read(files, (sectionID, wordFrequencies) -> {
+                // A section ID repeated within the new files is merged into its row, as in a full build
+                int docIndex = vocabulary.documentIndices().index(sectionID);
+                if (docIndex >= 0 && docIndex < committed) {
+                    System.err.printf("Skipping section %s, it is already in the index%n", sectionID);
+                    return;
+                }
+                vocabulary.processSection(sectionID, wordFrequencies);
+                sectionIndices.add(sectionID);
+                sections.processSection(sectionID, wordFrequencies);
+            });
+            vocabulary.extractDocumentDates(metadata);
+
+            index.addSegment(directory, files, sections.termFrequencies());
+        } catch (IOException | RuntimeException e) {
+            // Otherwise the vocabulary stays ahead of the commit and the next update fails
+            index.rollback();
+            throw e;
+        }
+        System.err.printf("Added %d sections from %d files%n", sectionIndices.size(), files.size());
+        return sectionIndices.size();
+    }
+
+    /**
+     * Read the corpus and hand the tf-idf vectors of its sections to the
+     * handler in batches. Only one batch is kept in memory. The vocabulary
+     * and its document frequencies are frozen, as filled by buildVocabulary().
+     *
+     * The files are read in a random order, the files of a collection are
+     * sorted by date and batches of consecutive files would each cover a
+     * short period only. E.g. MiniBatchKMeans seeds all centroids from the
+     * first batch.
+     *
+     * @param corpus     The name of the corpus, either PolMine or taz
+     * @param directory  The directory of the data collection
+     * @param vocabulary The vocabulary of the corpus
+     * @param batchSize  The number of sections per batch, the last batch may be smaller
+     * @param random     The random number generator for the order of the files
+     * @param handler    The handler receiving the batches
+     * @throws IOException
+     */
+    public void streamBatches(String corpus, File directory, Vocabulary vocabulary, int batchSize, Random random,
+                              BatchHandler handler) throws IOException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(String.format("Batch size should be positive, is %d", batchSize));
         }
 
-        return new HashSet(bestN);
+        List<File> files = new ArrayList<>(getFiles(corpus, directory, getExtension(corpus)));
+        Collections.shuffle(files, random);
+        CorpusReader read = new CorpusReader(corpus, LAYER, numOfThreads);
+
+        SectionVectorizer vectorizer = new SectionVectorizer(vocabulary.tokenIndices(),
+                vocabulary.documentFrequencies(), vocabulary.documentIndices().size());
+        BatchCollector collector = new BatchCollector(vectorizer, batchSize, handler);
+        read.read(files, collector);
+        collector.flush();
     }
 
     /**
-     * Comparator for tokens (by index). A token with a higher frequency is sorted
-     * before a token with a lower frequency.
+     * Receives batches of section vectors.
      */
-    private static class FreqComparator implements Comparator<Integer> {
-        private final TIntList frequencies;
+    public interface BatchHandler {
+        /**
+         * @param sectionIDs The IDs of the sections in the batch
+         * @param batch      The tf-idf vectors of the sections, one row per section
+         * @throws IOException
+         */
+        void processBatch(List<String> sectionIDs, SparseRows batch) throws IOException;
+    }
 
-        private FreqComparator(TIntList frequencies) {
-            this.frequencies = frequencies;
+    /**
+     * Vectorizes sections and hands them to a BatchHandler once a batch is full.
+     */
+    private static class BatchCollector implements CorpusReader.SectionHandler {
+        private final SectionVectorizer vectorizer;
+        private final int batchSize;
+        private final BatchHandler handler;
+        private List<String> sectionIDs;
+        private CRSBuilder builder;
+
+        private BatchCollector(SectionVectorizer vectorizer, int batchSize, BatchHandler handler) {
+            this.vectorizer = vectorizer;
+            this.batchSize = batchSize;
+            this.handler = handler;
+            this.sectionIDs = new ArrayList<>(batchSize);
+            this.builder = new CRSBuilder();
         }
 
         @Override
-        public int compare(Integer idx1, Integer idx2) {
-            int freqCmp = Integer.compare(frequencies.get(idx2), frequencies.get(idx1));
-            if (freqCmp != 0)
-                return freqCmp;
+        public void processSection(String sectionID, Map<String, Integer> wordFrequencies) throws IOException {
+            sectionIDs.add(sectionID);
+            vectorizer.addRow(wordFrequencies, builder);
+            if (sectionIDs.size() == batchSize) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (sectionIDs.isEmpty()) {
+                return;
+            }
+            handler.processBatch(sectionIDs, builder.build(vectorizer.columns()));
+            sectionIDs = new ArrayList<>(batchSize);
+            builder = new CRSBuilder();
+        }
+    }
+
+    /**
+     * Find the N most frequent tokens.
+     *
+     * @param tokenFreqs Token frequencies.
+     * @param n          The number of most frequent tokens to find.
+     * @return Most frequent tokens (by index).
+     */
+    protected static TIntSet mostFrequentTokens(TIntList tokenFreqs, int n) {
+        TopScores best = new TopScores(n);
 
-            return Integer.compare(idx1, idx2);
+        for (int i = 0; i < tokenFreqs.size(); i++) {
+            best.add(i, tokenFreqs.get(i));
         }
+
+        return new TIntHashSet(best.ids());
     }
 }
@@ -0,0 +1,266 @@
+package compact;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Mini-batch k-means clustering for document vectors (Sculley, 2010). The
+ * centroids are updated from one batch of documents at a time, so the
+ * documents do not have to be in memory together: batches can come from
+ * MatrixBuilder.streamBatches() or be sampled from a (memory-mapped) matrix.
+ *
+ * Each centroid is the running mean of the normalized documents assigned to
+ * it, a document moves its centroid with learning rate 1 / (number of
+ * documents assigned to the centroid so far). Documents are compared with the
+ * centroids by cosine similarity, as in KMeansClustering. Only the centroids,
+ * numOfClusters x vocabulary size doubles, and the current batch are kept.
+ *
+ * The centroids are seeded from the first batch only, so every batch, and
+ * the first one in particular, should be a random sample of the corpus. A
+ * batch of the oldest documents would seed all clusters with early topics.
+ * fit() samples its batches uniformly, streamBatches() shuffles the files.
+ *
+ * @author Patricia Fischer
+ */
+public class MiniBatchKMeans {
+
+    private final int numOfClusters;
+
+    private final int vectorLength;
+
+    private final Random random;
+
+    private final int numOfThreads;
+
+    private Seeding seeding = Seeding.KMEANS_PLUS_PLUS;
+
+    private double[][] means; // running means of the normalized documents of each cluster
+
+    private double[] inverseNorms; // inverse norms of the means
+
+    private long[] counts; // number of documents assigned to each cluster so far
+
+    /**
+     * @param numOfClusters The number of clusters
+     * @param vectorLength  The length of the document vectors, the vocabulary size
+     * @param random        The random number generator for seeding and sampling
+     * @param numOfThreads  The number of threads used in the assignment and update steps
+     */
+    public MiniBatchKMeans(int numOfClusters, int vectorLength, Random random, int numOfThreads) {
+        Preconditions.checkArgument(numOfClusters > 0, String.format("Number of clusters should be positive, is %d", numOfClusters));
+
+        this.numOfClusters = numOfClusters;
+        this.vectorLength = vectorLength;
+        this.random = random;
+        this.numOfThreads = numOfThreads;
+    }
+
+    /**
+     * @param seeding How the centroids are chosen from the first batch
+     */
+    public void setSeeding(Seeding seeding) {
+        this.seeding = seeding;
+    }
+
+    /**
+     * Update the centroids with a batch of documents. The centroids are seeded
+     * from the first batch, which must have at least numOfClusters documents
+     * and should be a random sample of the corpus.
+     *
+     * @param batch The document vectors
+     * @return The average cosine similarity of the documents to their closest centroid,
+     * before the update
+     */
+    public double update(SparseRows batch) {
+        int[] rows = new int[batch.rows()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i;
+        }
+        return update(batch, rows);
+    }
+
+    /**
+     * Update the centroids with a batch of rows of a matrix.
+     *
+     * @param documentVectors The document vectors
+     * @param batch           The rows of the batch
+     * @return The average cosine similarity of the documents to their closest centroid,
+     * before the update
+     */
+    public double update(SparseRows documentVectors, int[] batch) {
+        Preconditions.checkArgument(documentVectors.columns() == vectorLength,
+                String.format("Rows should have length %d, have %d", vectorLength, documentVectors.columns()));
+
+        double[] documentNorms = new double[batch.length];
+        for (int i = 0; i < batch.length; i++) {
+            documentNorms[i] = VectorUtils.inverseNorm(documentVectors, batch[i]);
+        }
+
+        if (means == null) {
+            seed(documentVectors, batch, documentNorms);
+        }
+
+        // Assign the documents to the current centroids
+        int[] assignments = new int[batch.length];
+        double objective = ParallelUtils.reduceRanges(batch.length, numOfThreads, (from, to) -> {
+            RowBuffer document = new RowBuffer();
+            double sum = 0;
+            for (int i = from; i < to; i++) {
+                documentVectors.copyRow(batch[i], document);
+                double maximum = -Double.MAX_VALUE;
+                int idx = -1;
+                for (int c = 0; c < numOfClusters; c++) {
+                    double similarity = VectorUtils.dotProduct(document, means[c]) * inverseNorms[c];
+                    if (similarity > maximum) {
+                        maximum = similarity;
+                        idx = c;
+                    }
+                }
+                assignments[i] = idx;
+                sum += maximum * documentNorms[i];
+            }
+            return sum;
+        }, Double::sum);
+
+        // Group the batch by cluster and move each centroid towards its documents.
+        // Stepping through the documents of a cluster with rates 1 / count gives
+        // the mean over all of its documents so far.
+        int[] clusterStarts = new int[numOfClusters + 1];
+        for (int cluster : assignments) {
+            clusterStarts[cluster + 1]++;
+        }
+        for (int c = 0; c < numOfClusters; c++) {
+            clusterStarts[c + 1] += clusterStarts[c];
+        }
+        int[] next = Arrays.copyOf(clusterStarts, numOfClusters);
+        int[] members = new int[batch.length];
+        for (int i = 0; i < batch.length; i++) {
+            members[next[assignments[i]]++] = i;
+        }
+
+        ParallelUtils.forEachRange(numOfClusters, numOfThreads, (from, to) -> {
+            for (int c = from; c < to; c++) {
+                int numOfMembers = clusterStarts[c + 1] - clusterStarts[c];
+                if (numOfMembers == 0) {
+                    continue;
+                }
+
+                double[] mean = means[c];
+                long count = counts[c] + numOfMembers;
+                double scale = (double) counts[c] / count;
+                for (int j = 0; j < mean.length; j++) {
+                    mean[j] *= scale;
+                }
+                for (int m = clusterStarts[c]; m < clusterStarts[c + 1]; m++) {
+                    int i = members[m];
+                    VectorUtils.addTo(mean, documentVectors, batch[i], documentNorms[i] / count);
+                }
+
+                counts[c] = count;
+                double norm = VectorUtils.norm(mean);
+                inverseNorms[c] = norm > 0 ? 1 / norm : 0;
+            }
+        });
+
+        return objective / batch.length;
+    }
+
+    /**
+     * Cluster the rows of a matrix with batches of rows sampled uniformly at random.
+     *
+     * @param documentVectors The document vectors
+     * @param batchSize       The number of rows per batch
+     * @param numOfBatches    The number of batches
+     * @return The average cosine similarity of the last batch to its closest centroids
+     */
+    public double fit(SparseRows documentVectors, int batchSize, int numOfBatches) {
+        Preconditions.checkArgument(documentVectors.rows() > 0, "Trying to extract clusters from empty matrix");
+
+        double objective = 0;
+        int[] batch = new int[batchSize];
+        for (int b = 0; b < numOfBatches; b++) {
+            for (int i = 0; i < batchSize; i++) {
+                batch[i] = random.nextInt(documentVectors.rows());
+            }
+            objective = update(documentVectors, batch);
+        }
+        return objective;
+    }
+
+    /**
+     * @param documentVectors The document vectors
+     * @return The closest centroid of each row
+     */
+    public int[] assign(SparseRows documentVectors) {
+        Preconditions.checkState(means != null, "No batches were processed yet");
+
+        int[] assignments = new int[documentVectors.rows()];
+        ParallelUtils.forEachRange(assignments.length, numOfThreads, (from, to) -> {
+            RowBuffer document = new RowBuffer();
+            for (int row = from; row < to; row++) {
+                documentVectors.copyRow(row, document);
+                double maximum = -Double.MAX_VALUE;
+                for (int c = 0; c < numOfClusters; c++) {
+                    double similarity = VectorUtils.dotProduct(document, means[c]) * inverseNorms[c];
+                    if (similarity > maximum) {
+                        maximum = similarity;
+                        assignments[row] = c;
+                    }
+                }
+            }
+        });
+        return assignments;
+    }
+
+    /**
+     * @return The unit length centroids, numOfClusters x vocabulary size
+     */
+    public double[][] centroids() {
+        Preconditions.checkState(means != null, "No batches were processed yet");
+
+        double[][] centroids = new double[numOfClusters][];
+        for (int c = 0; c < numOfClusters; c++) {
+            centroids[c] = new double[vectorLength];
+            for (int j = 0; j < vectorLength; j++) {
+                centroids[c][j] = means[c][j] * inverseNorms[c];
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * @return The number of documents assigned to each cluster so far
+     */
+    public long[] counts() {
+        return counts.clone();
+    }
+
+    private void seed(SparseRows documentVectors, int[] batch, double[] documentNorms) {
+        Preconditions.checkArgument(batch.length >= numOfClusters,
+                String.format("The first batch should have at least %d documents, has %d", numOfClusters, batch.length));
+
+        int[] seeds = KMeansSeeding.seeds(seeding, new KMeansSeeding.Cost() {
+            @Override
+            public int size() {
+                return batch.length;
+            }
+
+            @Override
+            public double cost(int doc, int seed) {
+                return Math.max(0, 2 - 2 * VectorUtils.dotProduct(documentVectors, batch[doc], documentVectors, batch[seed])
+                        * documentNorms[doc] * documentNorms[seed]);
+            }
+        }, numOfClusters, random, numOfThreads);
+
+        means = new double[numOfClusters][vectorLength];
+        inverseNorms = new double[numOfClusters];
+        counts = new long[numOfClusters];
+        for (int c = 0; c < numOfClusters; c++) {
+            VectorUtils.addTo(means[c], documentVectors, batch[seeds[c]], documentNorms[seeds[c]]);
+            inverseNorms[c] = documentNorms[seeds[c]] > 0 ? 1 : 0;
+            counts[c] = 1;
+        }
+    }
+}
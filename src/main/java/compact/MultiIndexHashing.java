@@ -0,0 +1,317 @@
+package compact;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Approximate nearest-neighbour search over document hashes with multi-index
+ * hashing (Norouzi et al., 2012). The hashes are split into substrings and
+ * each substring gets its own table from substring to documents. Two hashes
+ * that differ in at most m * (r + 1) - 1 bits have at least one of their m
+ * substrings within distance r, so the neighbours of a document are found by
+ * looking up all substrings within distance r of its own substrings.
+ *
+ * A query looks up substrings at distance 0, 1, 2, ... and stops when the n
+ * nearest candidates are closer than any document that was not found yet,
+ * the result is then exact. The maximum lookup radius trades recall for
+ * latency: the number of lookups grows with (substring length choose radius),
+ * when the maximum radius is reached the best candidates so far are returned.
+ *
+ * Shorter substrings find more distant neighbours at the same radius, at
+ * the cost of more candidates to compare. Only neighbours within
+ * m * (r + 1) - 1 bits are guaranteed to be found: for 1024 bits hashes, 64
+ * substrings of 16 bits with radius 1 find all neighbours up to 127 bits, a
+ * normalized distance of 0.124. More distant neighbours are found only when
+ * one of their substrings happens to be within the radius, measure the
+ * recall on the corpus before relying on a setting.
+ *
+ * Each table stores the documents sorted by substring, 4 bytes per document
+ * and 8 bytes per distinct substring.
+ *
+ * @author Patricia Fischer
+ */
+public class MultiIndexHashing {
+
+    private final HashedDocuments documents;
+
+    private final int numOfSubstrings;
+
+    private final int[] substringStarts;  // numOfSubstrings + 1 bit offsets
+
+    private final int[][] keys;  // distinct substrings per table, sorted
+
+    private final int[][] keyStarts;  // start of the documents of each substring, keys + 1 entries
+
+    private final int[][] docs;  // documents per table, sorted by substring
+
+    private int maxRadius = 1;
+
+    private final ThreadLocal<Seen> seen;
+
+    /**
+     * @param documents       The hashed documents
+     * @param numOfSubstrings The number of substrings, each should have at most 32 bits
+     * @param numOfThreads    The number of threads used to build the tables
+     */
+    public MultiIndexHashing(HashedDocuments documents, int numOfSubstrings, int numOfThreads) {
+        int hashLength = documents.getHashLength();
+        Preconditions.checkArgument(numOfSubstrings > 0 && numOfSubstrings <= hashLength,
+                String.format("Number of substrings should be in [1, %d], is %d", hashLength, numOfSubstrings));
+        Preconditions.checkArgument((hashLength + numOfSubstrings - 1) / numOfSubstrings <= 32,
+                String.format("Substrings of %d bits hashes are longer than 32 bits with %d substrings", hashLength, numOfSubstrings));
+
+        this.documents = documents;
+        this.numOfSubstrings = numOfSubstrings;
+        this.seen = ThreadLocal.withInitial(() -> new Seen(documents.size()));
+
+        // Spread the bits evenly, the first substrings get one bit more
+        substringStarts = new int[numOfSubstrings + 1];
+        for (int s = 0; s < numOfSubstrings; s++) {
+            substringStarts[s + 1] = substringStarts[s] + hashLength / numOfSubstrings + (s < hashLength % numOfSubstrings ? 1 : 0);
+        }
+
+        keys = new int[numOfSubstrings][];
+        keyStarts = new int[numOfSubstrings][];
+        docs = new int[numOfSubstrings][];
+
+        long[] hashes = documents.hashes();
+        int words = documents.words();
+        int numOfDocs = documents.size();
+        ParallelUtils.forEachRange(numOfSubstrings, numOfThreads, (from, to) -> {
+            long[] entries = new long[numOfDocs];
+            for (int s = from; s < to; s++) {
+                // Sort the documents by substring, packing substring and document into one long
+                for (int doc = 0; doc < numOfDocs; doc++) {
+                    entries[doc] = ((long) substring(hashes, doc * words, s) << 32) | doc;
+                }
+                Arrays.sort(entries);
+
+                int numOfKeys = 0;
+                for (int i = 0; i < numOfDocs; i++) {
+                    if (i == 0 || entries[i] >>> 32 != entries[i - 1] >>> 32) {
+                        numOfKeys++;
+                    }
+                }
+
+                int[] tableKeys = new int[numOfKeys];
+                int[] tableStarts = new int[numOfKeys + 1];
+                int[] tableDocs = new int[numOfDocs];
+                int k = 0;
+                for (int i = 0; i < numOfDocs; i++) {
+                    if (i == 0 || entries[i] >>> 32 != entries[i - 1] >>> 32) {
+                        tableKeys[k] = (int) (entries[i] >>> 32);
+                        tableStarts[k] = i;
+                        k++;
+                    }
+                    tableDocs[i] = (int) entries[i];
+                }
+                tableStarts[numOfKeys] = numOfDocs;
+
+                keys[s] = tableKeys;
+                keyStarts[s] = tableStarts;
+                docs[s] = tableDocs;
+            }
+        });
+    }
+
+    /**
+     * @param maxRadius The maximum distance of the substrings that are looked up,
+     *                  higher radii give better recall and slower queries
+     */
+    public void setMaxRadius(int maxRadius) {
+        Preconditions.checkArgument(maxRadius >= 0, String.format("Radius should be non-negative, is %d", maxRadius));
+        this.maxRadius = maxRadius;
+    }
+
+    /**
+     * Find the documents with the hashes closest to the hash of a document.
+     *
+     * @param docId The document
+     * @param n     The number of similar documents
+     * @return The similar documents with their normalized Hamming distance, closest first,
+     * or nothing if the document is unknown
+     */
+    public Optional<List<DocumentDistance>> similar(String docId, int n) {
+        Preconditions.checkNotNull(docId);
+
+        StringIndex documentIndices = documents.documentIndices();
+        int doc = documentIndices.index(docId);
+        if (doc < 0) {
+            return Optional.empty();
+        }
+
+        long[] neighbours = nearest(doc, n);
+        List<DocumentDistance> similar = new ArrayList<>(neighbours.length);
+        for (long neighbour : neighbours) {
+            double distance = (double) (neighbour >>> 32) / documents.getHashLength();
+            similar.add(new DocumentDistance(documentIndices.string((int) neighbour), distance));
+        }
+
+        return Optional.of(similar);
+    }
+
+    /**
+     * Find the documents with the hashes closest to the hash of a document,
+     * the document itself excluded.
+     *
+     * @param doc The document index
+     * @param n   The number of similar documents
+     * @return The similar documents closest first, each packed as Hamming distance in the
+     * upper and document index in the lower 32 bits
+     */
+    public long[] nearest(int doc, int n) {
+        long[] hashes = documents.hashes();
+        int words = documents.words();
+        int offset = doc * words;
+
+        int[] querySubstrings = new int[numOfSubstrings];
+        int maxLength = 0;
+        for (int s = 0; s < numOfSubstrings; s++) {
+            querySubstrings[s] = substring(hashes, offset, s);
+            maxLength = Math.max(maxLength, substringLength(s));
+        }
+
+        Candidates candidates = new Candidates(n);
+        Seen seen = this.seen.get();
+        seen.clear();
+        seen.add(doc);
+
+        for (int radius = 0; radius <= Math.min(maxRadius, maxLength); radius++) {
+            for (int s = 0; s < numOfSubstrings; s++) {
+                if (radius <= substringLength(s)) {
+                    probe(s, querySubstrings[s], radius, 0, offset, seen, candidates);
+                }
+            }
+
+            // Documents that were not found differ in more than radius bits in every substring
+            if (candidates.isFull() && candidates.worstDistance() < numOfSubstrings * (radius + 1)) {
+                break;
+            }
+        }
+
+        return candidates.toArray();
+    }
+
+    /**
+     * Look up all substrings that differ from the query substring in exactly
+     * radius bits, flipping bits from the given bit onwards.
+     */
+    private void probe(int s, int substring, int radius, int fromBit, int queryOffset, Seen seen, Candidates candidates) {
+        if (radius == 0) {
+            int k = Arrays.binarySearch(keys[s], substring);
+            if (k < 0) {
+                return;
+            }
+
+            long[] hashes = documents.hashes();
+            int words = documents.words();
+            for (int i = keyStarts[s][k]; i < keyStarts[s][k + 1]; i++) {
+                int doc = docs[s][i];
+                if (seen.add(doc)) {
+                    candidates.add(HashedDocuments.distance(hashes, queryOffset, hashes, doc * words, words), doc);
+                }
+            }
+            return;
+        }
+
+        for (int bit = fromBit; bit <= substringLength(s) - radius; bit++) {
+            probe(s, substring ^ (1 << bit), radius - 1, bit + 1, queryOffset, seen, candidates);
+        }
+    }
+
+    private int substringLength(int s) {
+        return substringStarts[s + 1] - substringStarts[s];
+    }
+
+    /**
+     * @return The bits of substring s of the hash at the given offset
+     */
+    private int substring(long[] hashes, int offset, int s) {
+        int start = substringStarts[s];
+        int length = substringLength(s);
+
+        long bits = hashes[offset + (start >>> 6)] >>> (start & 63);
+        int end = start + length - 1;
+        if ((end >>> 6) != (start >>> 6)) {
+            bits |= hashes[offset + (end >>> 6)] << (64 - (start & 63));
+        }
+
+        return (int) (bits & ((1L << length) - 1));
+    }
+
+    /**
+     * The documents compared with the query, reused between the queries of a
+     * thread. A document is seen when its stamp equals the stamp of the
+     * current query, so clearing does not touch the stamps.
+     */
+    private static class Seen {
+        private final int[] stamps;
+        private int stamp;
+
+        private Seen(int numOfDocs) {
+            stamps = new int[numOfDocs];
+        }
+
+        private void clear() {
+            if (++stamp == 0) {
+                // Wrapped around, stamps of earlier queries could match again
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+        }
+
+        /**
+         * @return True if the document was not seen before
+         */
+        private boolean add(int doc) {
+            if (stamps[doc] == stamp) {
+                return false;
+            }
+            stamps[doc] = stamp;
+            return true;
+        }
+    }
+
+    /**
+     * The n closest documents found so far, sorted by distance and document
+     * index, each packed into a long.
+     */
+    private static class Candidates {
+        private final long[] best;
+        private int size;
+
+        private Candidates(int n) {
+            best = new long[n];
+        }
+
+        private void add(int distance, int doc) {
+            long candidate = ((long) distance << 32) | doc;
+            if (size == best.length && (size == 0 || candidate >= best[size - 1])) {
+                return;
+            }
+
+            int i = size == best.length ? size - 1 : size++;
+            while (i > 0 && best[i - 1] > candidate) {
+                best[i] = best[i - 1];
+                i--;
+            }
+            best[i] = candidate;
+        }
+
+        private boolean isFull() {
+            return size == best.length;
+        }
+
+        private int worstDistance() {
+            return size == 0 ? 0 : (int) (best[size - 1] >>> 32);
+        }
+
+        private long[] toArray() {
+            return Arrays.copyOf(best, size);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package compact;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+
+/**
+ * Run work over index ranges (e.g. matrix rows) on a fork-join pool. One
+ * pool is created per number of threads on first use and kept for later
+ * calls, so that e.g. k-means iterations do not start new threads. The
+ * workers are daemon threads and do not keep the JVM alive.
+ *
+ * @author Patricia Fischer
+ */
+public class ParallelUtils {
+
+    private static final int CHUNKS_PER_THREAD = 8;
+
+    private static final ConcurrentMap<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
+    /**
+     * Split [0, size) into ranges and process them in parallel. Returns when
+     * all ranges are processed.
+     *
+     * @param size         The number of indices
+     * @param numOfThreads The number of threads, 1 processes all indices in the calling thread
+     * @param task         The task processing a range
+     */
+    public static void forEachRange(int size, int numOfThreads, RangeTask task) {
+        if (numOfThreads <= 1 || size <= 1) {
+            task.process(0, size);
+            return;
+        }
+
+        pool(numOfThreads).invoke(new RangeAction(task, 0, size, grain(size, numOfThreads)));
+    }
+
+    /**
+     * Split [0, size) into ranges, compute a partial result for each range in
+     * parallel and combine the partial results. Partial results are combined
+     * in index order, the earlier range first.
+     *
+     * @param size         The number of indices
+     * @param numOfThreads The number of threads, 1 processes all indices in the calling thread
+     * @param task         The task computing the partial result of a range
+     * @param combiner     Combines two partial results
+     * @return The combined result
+     */
+    public static <T> T reduceRanges(int size, int numOfThreads, RangeFunction<T> task, BinaryOperator<T> combiner) {
+        if (numOfThreads <= 1 || size <= 1) {
+            return task.process(0, size);
+        }
+
+        return pool(numOfThreads).invoke(new RangeReduction<>(task, combiner, 0, size, grain(size, numOfThreads)));
+    }
+
+    private static ForkJoinPool pool(int numOfThreads) {
+        return POOLS.computeIfAbsent(numOfThreads, ForkJoinPool::new);
+    }
+
+    static int grain(int size, int numOfThreads) {
+        return Math.max(1, size / (numOfThreads * CHUNKS_PER_THREAD));
+    }
+
+    /**
+     * Processes the indices [from, to).
+     */
+    public interface RangeTask {
+        void process(int from, int to);
+    }
+
+    /**
+     * Computes the partial result of the indices [from, to).
+     */
+    public interface RangeFunction<T> {
+        T process(int from, int to);
+    }
+
+    private static class RangeReduction<T> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+        private final RangeFunction<T> task;
+        private final BinaryOperator<T> combiner;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        private RangeReduction(RangeFunction<T> task, BinaryOperator<T> combiner, int from, int to, int grain) {
+            this.task = task;
+            this.combiner = combiner;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected T compute() {
+            if (to - from <= grain) {
+                return task.process(from, to);
+            }
+
+            int mid = (from + to) >>> 1;
+            RangeReduction<T> right = new RangeReduction<>(task, combiner, mid, to, grain);
+            right.fork();
+            T left = new RangeReduction<>(task, combiner, from, mid, grain).compute();
+            return combiner.apply(left, right.join());
+        }
+    }
+
+    private static class RangeAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final RangeTask task;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        private RangeAction(RangeTask task, int from, int to, int grain) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                task.process(from, to);
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeAction(task, from, mid, grain), new RangeAction(task, mid, to, grain));
+        }
+    }
+}
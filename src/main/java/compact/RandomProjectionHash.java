@@ -2,67 +2,162 @@ package compact;
 
 import com.carrotsearch.hppc.BitSet;
 import com.google.common.base.Preconditions;
-import org.apache.commons.math3.random.GaussianRandomGenerator;
 import org.apache.commons.math3.random.RandomGenerator;
 import org.la4j.iterator.VectorIterator;
 import org.la4j.vector.SparseVector;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Random projection hashing for double vectors.
  *
+ * The projection vectors are not stored: the entry of the projection vector
+ * of a bit for a term is +1 or -1, derived from a hash of (seed, bit, term).
+ * This approximates the angle between vectors as well as gaussian entries
+ * do, and needs no bits x vocabulary matrix. A vector is hashed in a single
+ * pass over its non-zeros, updating the accumulators of all bits at once.
+ *
  * @author Daniël de Kok and Patricia Fischer
  */
 public class RandomProjectionHash {
 
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
     private final int bits; //number of bits correlating with number of hash vectors
 
-    private final List<double[]> hashes;  //a list of all randomly generated hash vectors
+    private final int vectorLength;
+
+    private final long seed;
+
+    private final int words;
 
-    // Number of bits defines how many hash vectors are created
     public RandomProjectionHash(RandomGenerator generator, int vectorLength, int bits) {
+        this(generator.nextLong(), vectorLength, bits);
+    }
+
+    // Number of bits defines how many projections are computed
+    public RandomProjectionHash(long seed, int vectorLength, int bits) {
+        Preconditions.checkArgument(bits > 0, String.format("Number of bits should be positive, is %d", bits));
+
         this.bits = bits;
-        this.hashes = new ArrayList(); //change to array of arrays; i * vecLeng -> instead indexing in first and then in 2nd dimension
-        fill(generator, hashes, vectorLength, bits);
+        this.vectorLength = vectorLength;
+        this.seed = seed;
+        this.words = (bits + 63) >>> 6;
     }
 
-    private void fill(RandomGenerator generator, List hashes, int vectorLength, int bits) {
-        GaussianRandomGenerator gaussian = new GaussianRandomGenerator(generator);
-        for (int i = 0; i < bits; i++) {
-            double[] hash = new double[vectorLength];
-            for (int j = 0; j < vectorLength; j++) {
-                hash[i] = gaussian.nextNormalizedDouble();
-            }
-            hashes.add(hash);
-        }
+    public int bits() {
+        return bits;
+    }
+
+    /**
+     * @return The number of longs needed to store a hash
+     */
+    public int words() {
+        return words;
+    }
+
+    /**
+     * @return The seed of the projections, hashes are reproduced by a hash with the same seed
+     */
+    long seed() {
+        return seed;
+    }
+
+    /**
+     * @return The length of the hashed vectors
+     */
+    int vectorLength() {
+        return vectorLength;
     }
 
     public BitSet hashVector(SparseVector vector) {
-        int vecLen = hashes.get(0).length;
-        Preconditions.checkArgument(vector.length() == vecLen,
-                String.format("Vector should have length %d, has %d", vecLen, vector.length()));
+        Preconditions.checkArgument(vector.length() == vectorLength,
+                String.format("Vector should have length %d, has %d", vectorLength, vector.length()));
 
-        BitSet hash = new BitSet(bits);
+        double[] accumulators = new double[words << 6];
 
-        for (int i = 0; i < bits; ++i) {
+        //Calculate dot products between term vector and all projection vectors (skip 0 values)
+        VectorIterator vIter = vector.nonZeroIterator();
+        while (vIter.hasNext()) {
+            double value = vIter.next();
+            project(vIter.index(), value, accumulators);
+        }
+
+        long[] hash = new long[words];
+        toBits(accumulators, hash, 0);
+
+        return new BitSet(hash, hash.length);
+    }
 
-            double[] randomHashVec = hashes.get(i);
+    /**
+     * Hash a row of a sparse matrix into packed bits.
+     *
+     * @param rows         The matrix rows
+     * @param row          The row to hash
+     * @param accumulators Buffer of at least words() * 64 accumulators, overwritten
+     * @param hashes       The array to write the hash to
+     * @param offset       The offset of the hash in the array
+     */
+    public void hashRow(SparseRows rows, int row, double[] accumulators, long[] hashes, int offset) {
+        Preconditions.checkArgument(rows.columns() == vectorLength,
+                String.format("Rows should have length %d, have %d", vectorLength, rows.columns()));
+
+        Arrays.fill(accumulators, 0, words << 6, 0);
+        for (int pos = rows.rowStart(row); pos < rows.rowEnd(row); pos++) {
+            project(rows.columnIndex(pos), rows.value(pos), accumulators);
+        }
+
+        toBits(accumulators, hashes, offset);
+    }
 
-            //Calculate dot product between term vector and hash vector (skip 0 values)
-            VectorIterator vIter = vector.nonZeroIterator();
-            double dp = 0;
-            while(vIter.hasNext()) {
-                dp += vIter.next() * randomHashVec[vIter.index()];
+    /**
+     * Hash a buffered row, see hashRow(SparseRows, int, double[], long[], int).
+     * The columns of the row should be lower than the vector length.
+     */
+    public void hashRow(RowBuffer row, double[] accumulators, long[] hashes, int offset) {
+        int[] columns = row.columns();
+        double[] values = row.values();
+        Arrays.fill(accumulators, 0, words << 6, 0);
+        for (int i = 0; i < row.size(); i++) {
+            project(columns[i], values[i], accumulators);
+        }
+
+        toBits(accumulators, hashes, offset);
+    }
+
+    /**
+     * Add the contribution of one non-zero to the dot products of all bits.
+     * Each long of random bits gives the signs of the projection entries of
+     * 64 bits, applied by flipping the sign bit of the value.
+     */
+    private void project(int term, double value, double[] accumulators) {
+        long valueBits = Double.doubleToRawLongBits(value);
+        for (int word = 0, bit = 0; word < words; word++) {
+            long signs = mix(seed + (((long) term << 20) | word) * GOLDEN_GAMMA);
+            for (int i = 0; i < 64; i++, bit++) {
+                accumulators[bit] += Double.longBitsToDouble(valueBits ^ ((signs << (63 - i)) & Long.MIN_VALUE));
             }
+        }
+    }
 
-            //If dot product is larger than zero, set bit to 1
-            if (dp >= 0) {
-                hash.set(i);
+    //If dot product is larger than zero, set bit to 1
+    private void toBits(double[] accumulators, long[] hash, int offset) {
+        for (int word = 0; word < words; word++) {
+            long w = 0;
+            for (int i = 0; i < 64; i++) {
+                int bit = (word << 6) + i;
+                if (bit < bits && accumulators[bit] >= 0) {
+                    w |= 1L << i;
+                }
             }
+            hash[offset + word] = w;
         }
+    }
 
-        return hash;
+    // SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
     }
-}
\ No newline at end of file
+}
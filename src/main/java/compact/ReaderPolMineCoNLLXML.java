@@ -41,17 +41,17 @@ public class ReaderPolMineCoNLLXML implements Reader {
 
     private final Layer layer;
 
-    private static Map<String, List<String>> debateMetadata;  // section/file ID <-> date, sentence count, token count (for ALL files)
+    private final Map<String, List<String>> debateMetadata;  // section/file ID <-> date, sentence count, token count (for ALL files)
 
     private final SAXParserFactory parserFactory;
 
     private final Set<String> stopwords;
 
-    private static List<Map<String, Integer>> fileContent;  // content of all sections in ONE file, each section one HashMap of tokens and their frequencies
+    private List<Map<String, Integer>> fileContent;  // content of all sections in ONE file, each section one HashMap of tokens and their frequencies
 
-    private static List<String> debateIds;  // IDs of all sections in ONE file
+    private List<String> debateIds;  // IDs of all sections in ONE file
 
-    private static String date;
+    private String date;
 
     public ReaderPolMineCoNLLXML(Layer layer) throws IOException {
         this.layer = layer;
@@ -129,6 +129,7 @@ public class ReaderPolMineCoNLLXML implements Reader {
                     }
                 }
             }
+            date = ""; // no stale date from a previous file if the xml file is missing
             readDate(conllFile);
             debateMetadata.putIfAbsent(fileId, Arrays.asList(date, Integer.toString(sentenceCount), Integer.toString(tokenCount)));
         }
@@ -36,13 +36,13 @@ public class ReaderTaz implements Reader {
 
     private final Layer layer;
 
-    private static Map<String, List<String>> newsMetadata;  // section ID <-> date, sentence count, word count (for ALL files)
+    private final Map<String, List<String>> newsMetadata;  // section ID <-> date, sentence count, word count (for ALL files)
 
     private final Set<String> stopwords;
 
-    private static List<Map<String, Integer>> fileContent;  // content of all sections in ONE file, each section one HashMap
+    private List<Map<String, Integer>> fileContent;  // content of all sections in ONE file, each section one HashMap
 
-    private static List<String> sectionIds; // IDs of all sections in ONE file
+    private List<String> sectionIds; // IDs of all sections in ONE file
 
     private static final Pattern P_ID = Pattern.compile("nr:([0-9]+)");
 
@@ -3,6 +3,7 @@ package compact;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -31,6 +32,8 @@ public class ReaderUtils {
         } else {
             System.err.println("Provide a corpus name, choose between PolMine and taz.");
         }
+        // Fixed file order, so that document indices do not depend on the directory listing
+        Collections.sort(files);
         return files;
     }
 
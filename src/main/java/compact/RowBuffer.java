@@ -0,0 +1,55 @@
+package compact;
+
+import java.util.Arrays;
+
+/**
+ * A copy of the non-zeros of one row, filled by SparseRows.copyRow() and
+ * reused between rows. Loops over a buffered row read plain arrays, also
+ * when the rows compute their entries on access, e.g. SegmentedRows.
+ *
+ * @author Patricia Fischer
+ */
+public class RowBuffer {
+
+    private int[] columns = new int[0];
+
+    private double[] values = new double[0];
+
+    private int size;
+
+    /**
+     * Make room for a row with the given number of non-zeros, the content
+     * of the buffer is undefined afterwards.
+     *
+     * @param size The number of non-zeros
+     */
+    public void resize(int size) {
+        if (columns.length < size) {
+            int capacity = Math.max(size, 2 * columns.length);
+            columns = Arrays.copyOf(columns, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        this.size = size;
+    }
+
+    /**
+     * @return The number of non-zeros of the row
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The column indices of the non-zeros in ascending order, at least size() entries
+     */
+    public int[] columns() {
+        return columns;
+    }
+
+    /**
+     * @return The values of the non-zeros, at least size() entries
+     */
+    public double[] values() {
+        return values;
+    }
+}
@@ -0,0 +1,134 @@
+package compact;
+
+import gnu.trove.list.TIntList;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Turn the term frequencies of a section into a tf-idf row with a frozen
+ * vocabulary and frozen document frequencies, weighted like the rows of the
+ * TermDocumentMatrix. Terms that are not in the vocabulary are skipped, so
+ * sections that were not used to build the vocabulary can be vectorized as
+ * well.
+ *
+ * A vectorizer reuses its buffers and is not thread-safe.
+ *
+ * @author Patricia Fischer
+ */
+public class SectionVectorizer {
+
+    private final StringIndex tokenIndices;
+
+    private final double[] idfs;
+
+    private long[] entries;  // buffers for sorting the term frequencies of a section
+
+    private int[] columns;
+
+    private double[] values;
+
+    /**
+     * @param tokenIndices        The vocabulary
+     * @param documentFrequencies The document frequencies of the vocabulary terms
+     * @param numOfDocuments      The number of documents the document frequencies were counted over
+     */
+    public SectionVectorizer(StringIndex tokenIndices, TIntList documentFrequencies, int numOfDocuments) {
+        this.tokenIndices = tokenIndices;
+        this.idfs = new double[tokenIndices.size()];
+        for (int j = 0; j < idfs.length; j++) {
+            int docFreq = j < documentFrequencies.size() ? documentFrequencies.get(j) : 0;
+            idfs[j] = docFreq > 0 ? Math.log((double) numOfDocuments / (double) docFreq) : 1;
+        }
+        this.entries = new long[0];
+        this.columns = new int[0];
+        this.values = new double[0];
+    }
+
+    /**
+     * Restore a vectorizer with frozen idf weights, e.g. of a ClusterAssigner.
+     *
+     * @param tokenIndices The vocabulary, one token per idf weight
+     * @param idfs         The idf weight of each token
+     */
+    SectionVectorizer(StringIndex tokenIndices, double[] idfs) {
+        this.tokenIndices = tokenIndices;
+        this.idfs = idfs;
+        this.entries = new long[0];
+        this.columns = new int[0];
+        this.values = new double[0];
+    }
+
+    StringIndex tokenIndices() {
+        return tokenIndices;
+    }
+
+    double[] idfs() {
+        return idfs;
+    }
+
+    /**
+     * @return The number of columns of the vectors, the vocabulary size
+     */
+    public int columns() {
+        return idfs.length;
+    }
+
+    /**
+     * Append the tf-idf vector of a section as a row.
+     *
+     * @param wordFrequencies The term frequencies of the section
+     * @param builder         The rows to append to
+     * @return The number of non-zero entries of the row
+     */
+    public int addRow(Map<String, Integer> wordFrequencies, CRSBuilder builder) {
+        int length = wordFrequencies.size();
+        if (columns.length < length) {
+            columns = new int[length];
+            values = new double[length];
+        }
+
+        int k = vectorize(wordFrequencies, columns, values);
+        builder.addRow(columns, values, k);
+        return k;
+    }
+
+    /**
+     * Compute the tf-idf vector of a section.
+     *
+     * @param wordFrequencies The term frequencies of the section
+     * @param columns         Stores the column indices in increasing order, at least wordFrequencies.size() entries
+     * @param values          Stores the values of the columns
+     * @return The number of non-zero entries
+     */
+    public int vectorize(Map<String, Integer> wordFrequencies, int[] columns, double[] values) {
+        int length = wordFrequencies.size();
+        if (entries.length < length) {
+            entries = new long[length];
+        }
+
+        // Sort term frequencies by token index, packing index and frequency into one long
+        int n = 0;
+        for (Map.Entry<String, Integer> entry : wordFrequencies.entrySet()) {
+            int tokenID = tokenIndices.index(entry.getKey());
+            if (tokenID >= 0) {
+                entries[n++] = ((long) tokenID << 32) | (entry.getValue() & 0xFFFFFFFFL);
+            }
+        }
+        Arrays.sort(entries, 0, n);
+
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            int column = (int) (entries[i] >>> 32);
+            double value = (int) entries[i] * idfs[column];
+            if (value == 0) {
+                continue; // term occurs in all documents
+            }
+            columns[k] = column;
+            values[k] = value;
+            k++;
+        }
+
+        return k;
+    }
+}
@@ -0,0 +1,29 @@
+package compact;
+
+/**
+ * How k-means clustering chooses the documents that become the initial
+ * centroids.
+ *
+ * @author Patricia Fischer
+ */
+public enum Seeding {
+    /**
+     * Documents chosen uniformly at random.
+     */
+    RANDOM,
+
+    /**
+     * k-means++ (Arthur and Vassilvitskii, 2007): each next seed is chosen
+     * with probability proportional to its cost to the closest seed so far.
+     * Needs k passes over the documents.
+     */
+    KMEANS_PLUS_PLUS,
+
+    /**
+     * k-means|| (Bahmani et al., 2012): a few rounds in which many candidates
+     * are sampled at once, proportional to their cost. The candidates are
+     * weighted by the number of documents closest to them and reduced to k
+     * seeds with k-means++. Needs few passes over the documents for large k.
+     */
+    KMEANS_PARALLEL
+}
@@ -0,0 +1,126 @@
+package compact;
+
+/**
+ * The rows of the segments of a CorpusIndex as one matrix, the rows of each
+ * segment following those of the previous one. The segments store raw term
+ * frequencies, which are weighted with idf weights when they are accessed,
+ * so the rows always use the document frequencies of the whole corpus
+ * without rewriting any segment. Terms occurring in all documents have
+ * weight 0, their entries are not dropped but have value 0.
+ *
+ * Positions are mapped to a segment with a binary search over the segment
+ * starts, on every access. Loops over the non-zeros of a row should use
+ * copyRow(), which looks up the segment once per row and applies the idf
+ * weights in one pass over the row.
+ *
+ * @author Patricia Fischer
+ */
+public class SegmentedRows implements SparseRows {
+
+    private final SparseRows[] segments;
+
+    private final int[] rowStarts;  // first row of each segment, followed by the number of rows
+
+    private final int[] posStarts;  // first position of each segment, followed by the cardinality
+
+    private final int columns;
+
+    private final double[] idfs;
+
+    /**
+     * @param segments The rows of the segments, with at most the given number of columns
+     * @param columns  The number of columns
+     * @param idfs     The idf weight of each column, or null for unweighted values
+     */
+    SegmentedRows(SparseRows[] segments, int columns, double[] idfs) {
+        this.segments = segments;
+        this.columns = columns;
+        this.idfs = idfs;
+        this.rowStarts = new int[segments.length + 1];
+        this.posStarts = new int[segments.length + 1];
+
+        long cardinality = 0;
+        for (int i = 0; i < segments.length; i++) {
+            rowStarts[i + 1] = rowStarts[i] + segments[i].rows();
+            cardinality += segments[i].cardinality();
+            if (cardinality > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(String.format("Too many non-zeros for positions: %d", cardinality));
+            }
+            posStarts[i + 1] = (int) cardinality;
+        }
+    }
+
+    @Override
+    public int rows() {
+        return rowStarts[segments.length];
+    }
+
+    @Override
+    public int columns() {
+        return columns;
+    }
+
+    @Override
+    public int cardinality() {
+        return posStarts[segments.length];
+    }
+
+    @Override
+    public int rowStart(int row) {
+        int segment = segment(rowStarts, row);
+        return posStarts[segment] + segments[segment].rowStart(row - rowStarts[segment]);
+    }
+
+    @Override
+    public int rowEnd(int row) {
+        int segment = segment(rowStarts, row);
+        return posStarts[segment] + segments[segment].rowEnd(row - rowStarts[segment]);
+    }
+
+    @Override
+    public void copyRow(int row, RowBuffer buffer) {
+        int segment = segment(rowStarts, row);
+        segments[segment].copyRow(row - rowStarts[segment], buffer);
+        if (idfs == null) {
+            return;
+        }
+
+        int[] columns = buffer.columns();
+        double[] values = buffer.values();
+        for (int i = 0; i < buffer.size(); i++) {
+            values[i] *= idfs[columns[i]];
+        }
+    }
+
+    @Override
+    public int columnIndex(int pos) {
+        int segment = segment(posStarts, pos);
+        return segments[segment].columnIndex(pos - posStarts[segment]);
+    }
+
+    @Override
+    public double value(int pos) {
+        int segment = segment(posStarts, pos);
+        int segmentPos = pos - posStarts[segment];
+        double value = segments[segment].value(segmentPos);
+        return idfs == null ? value : value * idfs[segments[segment].columnIndex(segmentPos)];
+    }
+
+    /**
+     * @return The last segment starting at or before i, segments without
+     * rows or positions start at the same index as their successor
+     */
+    private int segment(int[] starts, int i) {
+        int low = 0;
+        int high = segments.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= i) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
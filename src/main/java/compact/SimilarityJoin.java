@@ -0,0 +1,157 @@
+package compact;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * All-pairs similarity join over document hashes: find all pairs of
+ * documents whose hashes differ in at most a given number of bits, e.g. to
+ * relate the sections of debates to newspaper articles.
+ *
+ * The documents are compared block by block, so that a block of hashes
+ * stays in the cache while it is compared with the documents of another
+ * block. Blocks are processed in parallel. The distance of a pair is the
+ * popcount of the xor of the packed hashes, no objects are allocated per
+ * pair. Pairs are passed to a sink instead of being collected, each thread
+ * buffers its pairs and hands them to the sink in batches.
+ *
+ * @author Patricia Fischer
+ */
+public class SimilarityJoin {
+
+    // 256 hashes of 1024 bits take up 32KB
+    private static final int BLOCK_SIZE = 256;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private SimilarityJoin() {
+    }
+
+    /**
+     * Find all pairs of documents within a Hamming radius. Each pair is
+     * passed to the sink once, with doc1 &lt; doc2.
+     *
+     * @param documents    The hashed documents
+     * @param radius       The maximum number of bits in which the hashes of a pair differ
+     * @param numOfThreads The number of threads
+     * @param sink         Receives the pairs
+     * @return The number of pairs
+     */
+    public static long selfJoin(HashedDocuments documents, int radius, int numOfThreads, PairSink sink) {
+        return join(documents, documents, true, radius, numOfThreads, sink);
+    }
+
+    /**
+     * Find all pairs of a document of one collection and a document of
+     * another collection within a Hamming radius. The hashes of both
+     * collections must have been computed with the same hash function.
+     *
+     * @param documents1   The hashed documents of the first collection
+     * @param documents2   The hashed documents of the second collection
+     * @param radius       The maximum number of bits in which the hashes of a pair differ
+     * @param numOfThreads The number of threads
+     * @param sink         Receives the pairs, doc1 from the first and doc2 from the second collection
+     * @return The number of pairs
+     */
+    public static long join(HashedDocuments documents1, HashedDocuments documents2, int radius, int numOfThreads, PairSink sink) {
+        Preconditions.checkArgument(documents1.getHashLength() == documents2.getHashLength(),
+                String.format("Hashes should have the same length, have %d and %d bits",
+                        documents1.getHashLength(), documents2.getHashLength()));
+
+        return join(documents1, documents2, false, radius, numOfThreads, sink);
+    }
+
+    private static long join(HashedDocuments documents1, HashedDocuments documents2, boolean self, int radius, int numOfThreads, PairSink sink) {
+        Preconditions.checkNotNull(sink);
+
+        long[] hashes1 = documents1.hashes();
+        long[] hashes2 = documents2.hashes();
+        int words = documents1.words();
+        int size1 = documents1.size();
+        int size2 = documents2.size();
+        int numOfBlocks1 = (size1 + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        return ParallelUtils.reduceRanges(numOfBlocks1, numOfThreads, (fromBlock, toBlock) -> {
+            PairBuffer buffer = new PairBuffer(sink);
+
+            for (int block1 = fromBlock; block1 < toBlock; block1++) {
+                int start1 = block1 * BLOCK_SIZE;
+                int end1 = Math.min(start1 + BLOCK_SIZE, size1);
+
+                // In a self join only the pairs in and above the diagonal block are compared
+                for (int start2 = self ? start1 : 0; start2 < size2; start2 += BLOCK_SIZE) {
+                    int end2 = Math.min(start2 + BLOCK_SIZE, size2);
+                    compareBlocks(hashes1, start1, end1, hashes2, start2, end2, words, self, radius, buffer);
+                }
+            }
+
+            buffer.flush();
+            return buffer.numOfPairs;
+        }, Long::sum);
+    }
+
+    /**
+     * Compare the documents [start1, end1) with the documents [start2, end2).
+     */
+    private static void compareBlocks(long[] hashes1, int start1, int end1, long[] hashes2, int start2, int end2,
+                                      int words, boolean self, int radius, PairBuffer buffer) {
+        for (int doc1 = start1; doc1 < end1; doc1++) {
+            int offset1 = doc1 * words;
+            for (int doc2 = self ? Math.max(start2, doc1 + 1) : start2; doc2 < end2; doc2++) {
+                int distance = HashedDocuments.distance(hashes1, offset1, hashes2, doc2 * words, words);
+                if (distance <= radius) {
+                    buffer.add(doc1, doc2, distance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the pairs of a similarity join. The sink is called from
+     * several threads, but never concurrently.
+     */
+    public interface PairSink {
+        /**
+         * @param doc1     The index of the first document
+         * @param doc2     The index of the second document
+         * @param distance The number of bits in which the hashes of the documents differ
+         */
+        void pair(int doc1, int doc2, int distance);
+    }
+
+    /**
+     * Buffers the pairs found by one thread.
+     */
+    private static class PairBuffer {
+        private final PairSink sink;
+        private final int[] docs1 = new int[BUFFER_SIZE];
+        private final int[] docs2 = new int[BUFFER_SIZE];
+        private final int[] distances = new int[BUFFER_SIZE];
+        private int size;
+        private long numOfPairs;
+
+        private PairBuffer(PairSink sink) {
+            this.sink = sink;
+        }
+
+        private void add(int doc1, int doc2, int distance) {
+            docs1[size] = doc1;
+            docs2[size] = doc2;
+            distances[size] = distance;
+            size++;
+            numOfPairs++;
+
+            if (size == BUFFER_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            synchronized (sink) {
+                for (int i = 0; i < size; i++) {
+                    sink.pair(docs1[i], docs2[i], distances[i]);
+                }
+            }
+            size = 0;
+        }
+    }
+}
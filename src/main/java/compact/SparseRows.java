@@ -0,0 +1,48 @@
+package compact;
+
+/**
+ * Read access to a sparse matrix in compressed row storage. The non-zero
+ * values of a row are at the positions rowStart(row) (inclusive) to
+ * rowEnd(row) (exclusive), sorted by column index.
+ *
+ * @author Patricia Fischer
+ */
+public interface SparseRows {
+
+    int rows();
+
+    int columns();
+
+    /**
+     * @return The number of non-zero values
+     */
+    int cardinality();
+
+    int rowStart(int row);
+
+    int rowEnd(int row);
+
+    int columnIndex(int pos);
+
+    double value(int pos);
+
+    /**
+     * Copy the non-zeros of a row into a buffer. Loops that visit a row
+     * several times, e.g. once per centroid, or rows that compute their
+     * entries on access, e.g. SegmentedRows, are faster on the copy.
+     *
+     * @param row    The row
+     * @param buffer The buffer, resized to the number of non-zeros of the row
+     */
+    default void copyRow(int row, RowBuffer buffer) {
+        int start = rowStart(row);
+        int end = rowEnd(row);
+        buffer.resize(end - start);
+        int[] columns = buffer.columns();
+        double[] values = buffer.values();
+        for (int pos = start; pos < end; pos++) {
+            columns[pos - start] = columnIndex(pos);
+            values[pos - start] = value(pos);
+        }
+    }
+}
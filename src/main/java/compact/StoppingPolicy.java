@@ -0,0 +1,68 @@
+package compact;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decides when k-means clustering has converged. Clustering stops after
+ * the maximum number of iterations, when the average objective improves
+ * less than the minimum improvement, or when at most the given fraction
+ * of documents moved to another cluster.
+ *
+ * @author Patricia Fischer
+ */
+public class StoppingPolicy {
+
+    /**
+     * Stop after 20 iterations, when the average objective improves by less
+     * than 0.0001 or when at most 0.1% of the documents are reassigned.
+     */
+    public static final StoppingPolicy DEFAULT = new StoppingPolicy(20, 1e-4, 0.001);
+
+    private final int maxIterations;
+
+    private final double minImprovement;
+
+    private final double reassignedFraction;
+
+    /**
+     * @param maxIterations      The maximum number of iterations
+     * @param minImprovement     Stop when the average objective improves by less than this value
+     * @param reassignedFraction Stop when at most this fraction of documents changes cluster,
+     *                           0 stops when the assignments do not change anymore
+     */
+    public StoppingPolicy(int maxIterations, double minImprovement, double reassignedFraction) {
+        Preconditions.checkArgument(maxIterations > 0,
+                String.format("Maximum number of iterations should be positive, is %d", maxIterations));
+        Preconditions.checkArgument(reassignedFraction >= 0 && reassignedFraction <= 1,
+                String.format("Reassigned fraction should be between 0 and 1, is %f", reassignedFraction));
+
+        this.maxIterations = maxIterations;
+        this.minImprovement = minImprovement;
+        this.reassignedFraction = reassignedFraction;
+    }
+
+    /**
+     * Run a fixed number of iterations, unless the assignments do not change anymore.
+     */
+    public static StoppingPolicy iterations(int n) {
+        return new StoppingPolicy(n, Double.NEGATIVE_INFINITY, 0);
+    }
+
+    public int maxIterations() {
+        return maxIterations;
+    }
+
+    /**
+     * @param iteration   The number of finished iterations
+     * @param improvement The improvement of the average objective over the previous
+     *                    iteration, positive when the clustering got better
+     * @param reassigned  The number of documents that changed cluster
+     * @param numOfDocs   The number of documents
+     * @return True if clustering should stop
+     */
+    public boolean stop(int iteration, double improvement, int reassigned, int numOfDocs) {
+        return iteration >= maxIterations
+                || improvement < minImprovement
+                || reassigned <= reassignedFraction * numOfDocs;
+    }
+}
@@ -1,12 +1,7 @@
 package compact;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-import org.la4j.Vector;
 import org.la4j.iterator.MatrixIterator;
-import org.la4j.iterator.VectorIterator;
 import org.la4j.matrix.SparseMatrix;
-import org.la4j.vector.SparseVector;
 
 import java.io.Serializable;
 import java.util.*;
@@ -16,8 +11,8 @@ import java.util.*;
  */
 public class StorageInformation implements Serializable {
 
-    private BiMap<String, Integer> documentIndices;
-    private BiMap<String, Integer> tokenIndices;
+    private StringIndex documentIndices;
+    private StringIndex tokenIndices;
     private Map<Integer, Date> dateIds;
 
     // Containers to serialize non-serializable matrix and centroid objects
@@ -27,22 +22,22 @@ public class StorageInformation implements Serializable {
     private int numOfCols;
     private List<List<MatrixValue>> serializableCentroids;
 
-    // SparseMatrix and Vector from the la4j package are non-serializable objects
+    // SparseMatrix from the la4j package is a non-serializable object
     // -> fill with values from serialized list objects
     private SparseMatrix counts;
-    private List<Vector> centroids;
+    private double[][] centroids;
 
     public StorageInformation() {
         serializableCounts = new ArrayList<>();
         numOfRows = 0;
         numOfCols = 0;
         serializableCentroids = new ArrayList<>();
-        documentIndices = HashBiMap.create();
-        tokenIndices = HashBiMap.create();
+        documentIndices = new StringIndex();
+        tokenIndices = new StringIndex();
         dateIds = new HashMap();
     }
 
-    public StorageInformation(List<MatrixValue> serializableCounts, int numOfRows, int numOfCols, List<List<MatrixValue>> serializableCentroids, BiMap<String, Integer> documentIndices,BiMap<String, Integer> tokenIndices, Map<Integer, Date> dateIds) {
+    public StorageInformation(List<MatrixValue> serializableCounts, int numOfRows, int numOfCols, List<List<MatrixValue>> serializableCentroids, StringIndex documentIndices, StringIndex tokenIndices, Map<Integer, Date> dateIds) {
         this.serializableCounts = serializableCounts;
         this.numOfRows = numOfRows;
         this.numOfCols = numOfCols;
@@ -69,41 +64,40 @@ public class StorageInformation implements Serializable {
         }
     }
 
-    public void centroidsToSerializable(List<Vector> centroidList) {
-        for (Vector centr : centroidList) {
+    public void centroidsToSerializable(double[][] centroidArrays) {
+        for (double[] centr : centroidArrays) {
             List<MatrixValue> centrList = new ArrayList<>();
-            VectorIterator vIter = centr.toSparseVector().nonZeroIterator();
-            while (vIter.hasNext()) {
-                double val = vIter.next();
-                int i = vIter.index();
-                centrList.add(new MatrixValue(0, i, val)); // treat vector like a one-dimensionsional matrix
+            for (int i = 0; i < centr.length; i++) {
+                if (centr[i] != 0) {
+                    centrList.add(new MatrixValue(0, i, centr[i])); // treat vector like a one-dimensionsional matrix
+                }
             }
             serializableCentroids.add(centrList);
         }
     }
 
     public void serializableToCentroids() {
-        centroids = new ArrayList<>();
-        for (List<MatrixValue> vals : serializableCentroids) {
-            Vector centr = SparseVector.zero(numOfCols);
-            for (MatrixValue val : vals) {
-                centr.set(val.getColumn(), val.getValue());
+        centroids = new double[serializableCentroids.size()][];
+        for (int i = 0; i < centroids.length; i++) {
+            double[] centr = new double[numOfCols];
+            for (MatrixValue val : serializableCentroids.get(i)) {
+                centr[val.getColumn()] = val.getValue();
             }
-            centroids.add(centr);
+            centroids[i] = centr;
         }
     }
 
     public SparseMatrix getCountsMatrix() { return counts; }
 
-    public List<Vector> getCentroids() {
+    public double[][] getCentroids() {
         return centroids;
     }
 
-    public BiMap<String, Integer> getDocumentIndices() {
+    public StringIndex getDocumentIndices() {
         return documentIndices;
     }
 
-    public BiMap<String, Integer> getTokenIndices() {
+    public StringIndex getTokenIndices() {
         return tokenIndices;
     }
 
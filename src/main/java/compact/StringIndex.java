@@ -0,0 +1,310 @@
+package compact;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A compact dictionary which associates strings with consecutive indices,
+ * starting from 0. The strings are stored as UTF-8 in one contiguous byte
+ * array, an offset array gives the string of an index. Strings are looked up
+ * in an open-addressing hash table of indices, comparing the stored bytes
+ * with the string directly so that lookups do not allocate.
+ *
+ * A string index needs a few bytes per entry on top of the UTF-8 bytes,
+ * a HashBiMap needs two hash table entries and a boxed Integer per entry.
+ *
+ * @author Patricia Fischer
+ */
+public class StringIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final int EMPTY = -1;
+
+    private byte[] bytes;  // UTF-8 bytes of all strings
+
+    private int[] offsets;  // offset of the string with index i, size + 1 entries are used
+
+    private int[] hashes;  // String.hashCode() of the string with index i
+
+    private int[] slots;  // hash table of indices, EMPTY for free slots
+
+    private int size;
+
+    public StringIndex() {
+        bytes = new byte[INITIAL_CAPACITY * 8];
+        offsets = new int[INITIAL_CAPACITY + 1];
+        hashes = new int[INITIAL_CAPACITY];
+        slots = new int[INITIAL_CAPACITY * 2];
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * @param s The string
+     * @return The index of the string, -1 if the string is not in the index
+     */
+    public int index(String s) {
+        int hash = s.hashCode();
+        int mask = slots.length - 1;
+        for (int slot = slot(hash, mask); ; slot = (slot + 1) & mask) {
+            int idx = slots[slot];
+            if (idx == EMPTY) {
+                return -1;
+            }
+            if (hashes[idx] == hash && equalsAt(idx, s)) {
+                return idx;
+            }
+        }
+    }
+
+    /**
+     * Add a string to the index, if it is not in the index yet.
+     *
+     * @param s The string
+     * @return The index of the string
+     */
+    public int add(String s) {
+        int idx = index(s);
+        if (idx >= 0) {
+            return idx;
+        }
+
+        if (2 * (size + 1) > slots.length) {
+            rehash(2 * slots.length);
+        }
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, Math.max(2 * hashes.length, INITIAL_CAPACITY));
+            offsets = Arrays.copyOf(offsets, hashes.length + 1);
+        }
+
+        idx = size++;
+        hashes[idx] = s.hashCode();
+        offsets[idx + 1] = encode(s, offsets[idx]);
+        insert(idx);
+
+        return idx;
+    }
+
+    /**
+     * @param idx The index
+     * @return The string associated with the index
+     */
+    public String string(int idx) {
+        if (idx < 0 || idx >= size) {
+            throw new IndexOutOfBoundsException(String.format("Index %d, size %d", idx, size));
+        }
+        return new String(bytes, offsets[idx], offsets[idx + 1] - offsets[idx], StandardCharsets.UTF_8);
+    }
+
+    public boolean contains(String s) {
+        return index(s) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int slot(int hash, int mask) {
+        // Spread the bits of the string hash, the low bits of String.hashCode() are weak
+        int h = hash * 0x9E3779B9;
+        return (h ^ h >>> 16) & mask;
+    }
+
+    private void insert(int idx) {
+        int mask = slots.length - 1;
+        int slot = slot(hashes[idx], mask);
+        while (slots[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = idx;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        for (int idx = 0; idx < size; idx++) {
+            insert(idx);
+        }
+    }
+
+    /**
+     * Append the UTF-8 encoding of a string to the byte array. Unpaired
+     * surrogates are encoded as '?', as String.getBytes() does.
+     *
+     * @return The offset after the encoded string
+     */
+    private int encode(String s, int offset) {
+        if (bytes.length - offset < 4 * s.length()) {
+            bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, offset + 4 * s.length()));
+        }
+
+        for (int i = 0; i < s.length(); i++) {
+            int cp = codePoint(s, i);
+            if (cp > 0xFFFF) {
+                i++;
+            }
+
+            if (cp < 0x80) {
+                bytes[offset++] = (byte) cp;
+            } else if (cp < 0x800) {
+                bytes[offset++] = (byte) (0xC0 | cp >> 6);
+                bytes[offset++] = (byte) (0x80 | cp & 0x3F);
+            } else if (cp < 0x10000) {
+                bytes[offset++] = (byte) (0xE0 | cp >> 12);
+                bytes[offset++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                bytes[offset++] = (byte) (0x80 | cp & 0x3F);
+            } else {
+                bytes[offset++] = (byte) (0xF0 | cp >> 18);
+                bytes[offset++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                bytes[offset++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                bytes[offset++] = (byte) (0x80 | cp & 0x3F);
+            }
+        }
+
+        return offset;
+    }
+
+    /**
+     * Compare the stored UTF-8 bytes of an index with a string, without
+     * encoding the string into a temporary array.
+     */
+    private boolean equalsAt(int idx, String s) {
+        int pos = offsets[idx];
+        int end = offsets[idx + 1];
+
+        for (int i = 0; i < s.length(); i++) {
+            int cp = codePoint(s, i);
+            if (cp > 0xFFFF) {
+                i++;
+            }
+
+            if (cp < 0x80) {
+                if (pos + 1 > end || bytes[pos++] != (byte) cp) {
+                    return false;
+                }
+            } else if (cp < 0x800) {
+                if (pos + 2 > end || bytes[pos++] != (byte) (0xC0 | cp >> 6)
+                        || bytes[pos++] != (byte) (0x80 | cp & 0x3F)) {
+                    return false;
+                }
+            } else if (cp < 0x10000) {
+                if (pos + 3 > end || bytes[pos++] != (byte) (0xE0 | cp >> 12)
+                        || bytes[pos++] != (byte) (0x80 | cp >> 6 & 0x3F)
+                        || bytes[pos++] != (byte) (0x80 | cp & 0x3F)) {
+                    return false;
+                }
+            } else {
+                if (pos + 4 > end || bytes[pos++] != (byte) (0xF0 | cp >> 18)
+                        || bytes[pos++] != (byte) (0x80 | cp >> 12 & 0x3F)
+                        || bytes[pos++] != (byte) (0x80 | cp >> 6 & 0x3F)
+                        || bytes[pos++] != (byte) (0x80 | cp & 0x3F)) {
+                    return false;
+                }
+            }
+        }
+
+        return pos == end;
+    }
+
+    private static int codePoint(String s, int i) {
+        char c = s.charAt(i);
+        if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            return Character.toCodePoint(c, s.charAt(i + 1));
+        }
+        if (Character.isSurrogate(c)) {
+            return '?';
+        }
+        return c;
+    }
+
+    /**
+     * Remove the strings with an index of size or higher.
+     *
+     * @param size The new size, at most size()
+     */
+    void truncate(int size) {
+        if (size < 0 || size > this.size) {
+            throw new IndexOutOfBoundsException(String.format("Size %d, current size %d", size, this.size));
+        }
+        this.size = size;
+        rehash(slots.length);
+    }
+
+    /**
+     * @param size The number of strings, at most size()
+     * @return A copy of the index with the strings with an index lower than size
+     */
+    StringIndex prefix(int size) {
+        if (size < 0 || size > this.size) {
+            throw new IndexOutOfBoundsException(String.format("Size %d, current size %d", size, this.size));
+        }
+        return fromArrays(size, Arrays.copyOf(bytes, offsets[size]), Arrays.copyOf(offsets, size + 1),
+                Arrays.copyOf(hashes, size));
+    }
+
+    /**
+     * Create an index from the arrays of another index, as returned by
+     * bytes(), offsets() and hashes(). The arrays are not copied.
+     */
+    static StringIndex fromArrays(int size, byte[] bytes, int[] offsets, int[] hashes) {
+        StringIndex index = new StringIndex();
+        index.size = size;
+        index.bytes = bytes;
+        index.offsets = offsets;
+        index.hashes = hashes;
+
+        int capacity = INITIAL_CAPACITY * 2;
+        while (capacity < 2 * (size + 1)) {
+            capacity *= 2;
+        }
+        index.rehash(capacity);
+        return index;
+    }
+
+    /**
+     * @return The UTF-8 bytes of all strings, at least offsets()[size()] bytes
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The offsets of the strings in bytes(), at least size() + 1 entries
+     */
+    int[] offsets() {
+        return offsets;
+    }
+
+    /**
+     * @return The hash codes of the strings, at least size() entries
+     */
+    int[] hashes() {
+        return hashes;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        size = in.readInt();
+        bytes = (byte[]) in.readObject();
+        offsets = (int[]) in.readObject();
+        hashes = (int[]) in.readObject();
+
+        int capacity = INITIAL_CAPACITY * 2;
+        while (capacity < 2 * (size + 1)) {
+            capacity *= 2;
+        }
+        rehash(capacity);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.writeInt(size);
+        out.writeObject(Arrays.copyOf(bytes, offsets[size]));
+        out.writeObject(Arrays.copyOf(offsets, size + 1));
+        out.writeObject(Arrays.copyOf(hashes, size));
+    }
+}
@@ -1,19 +1,16 @@
 package compact;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.Iterables;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
-import org.apache.commons.math3.util.Pair;
 import org.la4j.matrix.SparseMatrix;
 import org.la4j.matrix.sparse.CRSMatrix;
-import org.la4j.iterator.MatrixIterator;
 import org.la4j.Vector;
 import org.la4j.decomposition.SingularValueDecompositor;
 import org.la4j.iterator.VectorIterator;
@@ -29,25 +26,63 @@ import org.la4j.vector.SparseVector;
  */
 public class TermDocumentMatrix {
 
-    private final BiMap<String, Integer> documentIndices;
+    private final StringIndex documentIndices;
 
-    private final BiMap<String, Integer> tokenIndices;
+    private final StringIndex tokenIndices;
 
-    private static SparseMatrix counts;
+    private SparseMatrix counts;
 
-    public TermDocumentMatrix(BiMap<String, Integer> documentIndices, BiMap<String, Integer> tokenIndices) {
+    private SparseRows rows;
+
+    private final CRSBuilder builder; // term frequencies by document index, until the matrix is assembled
+
+    private final CRSBuilder duplicates; // term frequencies of repeated sections, added to their rows on assembly
+
+    private final TIntList duplicateRows;  // document index of each row of duplicates
+
+    private int[] sectionColumns;  // buffers for sorting the term frequencies of a section
+
+    private double[] sectionFrequencies;
+
+    private long[] sectionEntries;
+
+    private final ThreadLocal<int[]> termCounts;  // document counts per term of termSupports(), all zero between calls
+
+    public TermDocumentMatrix(StringIndex documentIndices, StringIndex tokenIndices) {
         this.documentIndices = documentIndices;
         this.tokenIndices = tokenIndices;
-        counts = CRSMatrix.zero(documentIndices.size(), tokenIndices.size());
+        this.builder = new CRSBuilder();
+        this.duplicates = new CRSBuilder();
+        this.duplicateRows = new TIntArrayList();
+        this.sectionColumns = new int[0];
+        this.sectionFrequencies = new double[0];
+        this.sectionEntries = new long[0];
+        this.termCounts = ThreadLocal.withInitial(() -> new int[0]);
+        setRows(builder.build(tokenIndices.size()));
     }
 
     /**
-     * @return
+     * The la4j matrix of the rows. For memory-mapped rows the matrix is
+     * copied onto the heap on first use, prefer sparseRows().
+     *
+     * @return The matrix
      */
     public SparseMatrix counts() {
+        if (counts == null) {
+            counts = CRSBuilder.copyOf(rows).toCRSMatrix();
+        }
         return counts;
     }
 
+    /**
+     * The rows of the matrix, sharing their values with counts().
+     *
+     * @return The document rows
+     */
+    public SparseRows sparseRows() {
+        return rows;
+    }
+
     /**
      * Please use setCounts() only to set a derialized matrix as counts
      * (needed in, e.g., sharedWords method). Otherwise, calculate counts
@@ -57,12 +92,52 @@ public class TermDocumentMatrix {
      */
     public void setCounts(SparseMatrix m) {
         this.counts = m;
+        this.rows = CRSBuilder.fromMatrix(m);
+    }
+
+    /**
+     * Set the rows of the matrix, e.g. rows read with BinaryStorage. The
+     * counts matrix shares its arrays with compressed rows. Memory-mapped
+     * rows make the matrix read-only.
+     *
+     * @param sparseRows The rows to be set as counts
+     */
+    public void setRows(SparseRows sparseRows) {
+        this.rows = sparseRows;
+        this.counts = sparseRows instanceof CompressedRows ? ((CompressedRows) sparseRows).toCRSMatrix() : null;
     }
 
     /**
-     * @param documentFrequencies
+     * Create a read-only matrix memory-mapping the rows of a file written by
+     * BinaryStorage, see MappedRows. Several processes can map the same file
+     * and share its pages. Sections cannot be added to the matrix.
+     *
+     * @param file The storage file
+     * @return The matrix
+     * @throws IOException
+     */
+    public static TermDocumentMatrix map(File file) throws IOException {
+        BinaryStorage storage = BinaryStorage.map(file);
+        TermDocumentMatrix tdm = new TermDocumentMatrix(storage.getDocumentIndices(), storage.getTokenIndices());
+        tdm.setRows(storage.getRows());
+        return tdm;
+    }
+
+    private void checkWritable() {
+        if (rows instanceof MappedRows) {
+            throw new IllegalStateException("The matrix is memory-mapped and read-only");
+        }
+    }
+
+    /**
+     * Assemble the tf-idf matrix from the term frequencies collected by
+     * processSection(). The size of the matrix is only known once all
+     * sections have been read, so the matrix is built in one go.
+     *
+     * @param documentFrequencies The document frequencies of all terms
      */
     public void tfIdf(TIntList documentFrequencies) {
+        checkWritable();
         countsToTfIdf(documentFrequencies);
     }
     
@@ -70,53 +145,221 @@ public class TermDocumentMatrix {
      * Decompose matrix.
      */
     public void svd() {
-        SingularValueDecompositor svd = new SingularValueDecompositor(counts);
-        counts = svd.decompose()[0].toSparseMatrix();
+        SingularValueDecompositor svd = new SingularValueDecompositor(counts());
+        setCounts(svd.decompose()[0].toSparseMatrix());
     }
 
     /**
+     * Collect the term frequencies of a section. The section and its terms
+     * must already be known to the vocabulary, sections have to be processed
+     * in the order of their document indices. The frequencies of a section
+     * ID that was processed before are added to those of its row.
+     *
      * @param sectionID
      * @param wordFrequencies
      * @throws IOException
      */
     public void processSection(String sectionID, Map<String, Integer> wordFrequencies) throws IOException {
+        checkWritable();
 
-        Integer fileIDIndex = documentIndices.get(sectionID);
-        if (fileIDIndex == null) {
+        int fileIDIndex = documentIndices.index(sectionID);
+        if (fileIDIndex < 0) {
             throw new IOException(String.format("Unknown file ID: %s", sectionID));
         }
 
+        int length = wordFrequencies.size();
+        if (sectionEntries.length < length) {
+            sectionEntries = new long[length];
+            sectionColumns = new int[length];
+            sectionFrequencies = new double[length];
+        }
+
+        // Sort term frequencies by token index, packing index and frequency into one long
+        int i = 0;
         for (Map.Entry<String, Integer> entry : wordFrequencies.entrySet()) {
-            Integer tokenID = tokenIndices.get(entry.getKey());
-            counts.set(fileIDIndex, tokenID, counts.get(fileIDIndex, tokenID) + entry.getValue());
+            int tokenID = tokenIndices.index(entry.getKey());
+            if (tokenID < 0) {
+                throw new IOException(String.format("Unknown token: %s", entry.getKey()));
+            }
+            sectionEntries[i++] = ((long) tokenID << 32) | (entry.getValue() & 0xFFFFFFFFL);
+        }
+        Arrays.sort(sectionEntries, 0, length);
+        for (i = 0; i < length; i++) {
+            sectionColumns[i] = (int) (sectionEntries[i] >>> 32);
+            sectionFrequencies[i] = (int) sectionEntries[i];
         }
+
+        if (fileIDIndex < builder.rows()) {
+            // Repeated section ID, merged with the earlier row on assembly
+            duplicates.addRow(sectionColumns, sectionFrequencies, length);
+            duplicateRows.add(fileIDIndex);
+            return;
+        }
+
+        // Sections without content of their own
+        while (builder.rows() < fileIDIndex) {
+            builder.addRow(sectionColumns, sectionFrequencies, 0);
+        }
+        builder.addRow(sectionColumns, sectionFrequencies, length);
     }
 
     /**
-     * Turn the raw frequency matrix into a tf-idf matrix.
+     * Turn the collected raw frequencies into a tf-idf matrix. Values are
+     * weighted in place, dropping terms which occur in all documents.
      *
      * @param documentFrequencies The document frequencies of all terms
      */
     private void countsToTfIdf(TIntList documentFrequencies) {
+        CompressedRows frequencies = termFrequencies();
+        setRows(toTfIdf(frequencies, idfs(documentFrequencies, frequencies.rows())));
+        System.out.println(counts.rows()+ " sections done");
+    }
 
-        int numOfDocuments = counts.rows();
+    /**
+     * The term frequencies collected by processSection(), one row per
+     * document index, before they are weighted.
+     *
+     * @return The term frequencies
+     */
+    CompressedRows termFrequencies() {
+        int numOfDocuments = documentIndices.size();
+        while (builder.rows() < numOfDocuments) {
+            builder.addRow(sectionColumns, sectionFrequencies, 0);
+        }
+        CompressedRows frequencies = builder.build(tokenIndices.size());
+        return duplicateRows.isEmpty() ? frequencies : addDuplicates(frequencies);
+    }
 
-        MatrixIterator matIter = counts.nonZeroIterator();
-        while (matIter.hasNext()) {
-            double val = matIter.next();
-            int j = matIter.columnIndex();
-            int docFreq = documentFrequencies.get(j);
-            if (docFreq > 0 && val > 0) {
-                matIter.set(val * Math.log((double) numOfDocuments / (double) docFreq));
+    /**
+     * Add the frequencies of repeated sections to the rows of their section IDs.
+     */
+    private CompressedRows addDuplicates(CompressedRows frequencies) {
+        CompressedRows extra = duplicates.build(frequencies.columns());
+
+        // Duplicates per document, as compressed rows again
+        int numOfDocuments = frequencies.rows();
+        int[] extraStarts = new int[numOfDocuments + 1];
+        for (int i = 0; i < duplicateRows.size(); i++) {
+            extraStarts[duplicateRows.get(i) + 1]++;
+        }
+        for (int row = 0; row < numOfDocuments; row++) {
+            extraStarts[row + 1] += extraStarts[row];
+        }
+        int[] extraRows = new int[duplicateRows.size()];
+        int[] next = Arrays.copyOf(extraStarts, numOfDocuments);
+        for (int i = 0; i < duplicateRows.size(); i++) {
+            extraRows[next[duplicateRows.get(i)]++] = i;
+        }
+
+        CRSBuilder merged = new CRSBuilder();
+        int[] columns = new int[0];
+        double[] values = new double[0];
+        for (int row = 0; row < numOfDocuments; row++) {
+            int length = frequencies.rowEnd(row) - frequencies.rowStart(row);
+            for (int i = extraStarts[row]; i < extraStarts[row + 1]; i++) {
+                length += extra.rowEnd(extraRows[i]) - extra.rowStart(extraRows[i]);
             }
-            /*
-            if (j == counts.columns() - 1) {
-                System.out.println(matIter.rowIndex() + 1 + " sections done");
+            if (columns.length < 2 * length) {
+                columns = new int[2 * length];
+                values = new double[2 * length];
             }
-            */
 
+            int n = copyRow(frequencies, row, columns, values, 0);
+            for (int i = extraStarts[row]; i < extraStarts[row + 1]; i++) {
+                n = mergeRow(columns, values, n, extra, extraRows[i]);
+            }
+            merged.addRow(columns, values, n);
         }
-        System.out.println(counts.rows()+ " sections done");
+
+        return merged.build(frequencies.columns());
+    }
+
+    private static int copyRow(SparseRows rows, int row, int[] columns, double[] values, int offset) {
+        int n = 0;
+        for (int pos = rows.rowStart(row); pos < rows.rowEnd(row); pos++, n++) {
+            columns[offset + n] = rows.columnIndex(pos);
+            values[offset + n] = rows.value(pos);
+        }
+        return n;
+    }
+
+    /**
+     * Merge a row into the first n sorted entries of columns and values,
+     * using the upper half of the buffers as scratch space.
+     *
+     * @return The number of entries after merging
+     */
+    private static int mergeRow(int[] columns, double[] values, int n, SparseRows rows, int row) {
+        int half = columns.length / 2;
+        System.arraycopy(columns, 0, columns, half, n);
+        System.arraycopy(values, 0, values, half, n);
+
+        int i = half;
+        int pos = rows.rowStart(row);
+        int k = 0;
+        while (i < half + n || pos < rows.rowEnd(row)) {
+            if (pos == rows.rowEnd(row) || (i < half + n && columns[i] < rows.columnIndex(pos))) {
+                columns[k] = columns[i];
+                values[k++] = values[i++];
+            } else if (i == half + n || rows.columnIndex(pos) < columns[i]) {
+                columns[k] = rows.columnIndex(pos);
+                values[k++] = rows.value(pos++);
+            } else {
+                columns[k] = columns[i];
+                values[k++] = values[i++] + rows.value(pos++);
+            }
+        }
+        return k;
+    }
+
+    /**
+     * The idf weights of terms, terms without documents get weight 1.
+     *
+     * @param documentFrequencies The document frequencies of all terms
+     * @param numOfDocuments      The number of documents
+     * @return The idf weight of each term
+     */
+    static double[] idfs(TIntList documentFrequencies, int numOfDocuments) {
+        double[] idfs = new double[documentFrequencies.size()];
+        for (int j = 0; j < idfs.length; j++) {
+            int docFreq = documentFrequencies.get(j);
+            idfs[j] = docFreq > 0 ? Math.log((double) numOfDocuments / (double) docFreq) : 1;
+        }
+        return idfs;
+    }
+
+    /**
+     * Weight term frequencies by the inverse document frequencies, in place.
+     * Terms occurring in all documents get weight 0 and are dropped.
+     *
+     * @param frequencies The term frequencies, one row per document
+     * @param idfs        The idf weights of all terms, see idfs()
+     * @return The tf-idf rows, sharing their arrays with the frequencies
+     */
+    static CompressedRows toTfIdf(CompressedRows frequencies, double[] idfs) {
+        int numOfDocuments = frequencies.rows();
+        int[] rowPointers = frequencies.rowPointers();
+        int[] columnIndices = frequencies.columnIndices();
+        double[] values = frequencies.values();
+
+        int k = 0;
+        for (int row = 0; row < numOfDocuments; row++) {
+            int start = rowPointers[row];
+            int end = rowPointers[row + 1];
+            rowPointers[row] = k;
+            for (int pos = start; pos < end; pos++) {
+                double val = values[pos] * idfs[columnIndices[pos]];
+                if (val == 0) {
+                    continue; // term occurs in all documents
+                }
+                columnIndices[k] = columnIndices[pos];
+                values[k] = val;
+                k++;
+            }
+        }
+        rowPointers[numOfDocuments] = k;
+
+        return new CompressedRows(numOfDocuments, frequencies.columns(), rowPointers, columnIndices, values);
     }
 
     /**
@@ -125,29 +368,56 @@ public class TermDocumentMatrix {
      * @param document The document vector
      * @param n        The number of most relevant terms
      * @param retain   Terms to retain
-     * @return The term indices
+     * @return The term indices, highest tf-idf first
      */
-    private TIntList nHighestTfIdfs(Vector document, Integer n, TIntSet retain) {
-        SortedSet<Pair<Integer, Double>> sortedTerms = new TreeSet<>((o1, o2) -> {
-            int cmp = o1.getValue().compareTo(o2.getValue());
-            if (cmp == 0) {
-                return o1.getKey().compareTo(o2.getKey());
-            }
-
-            return -cmp;
-        });
+    private TIntList nHighestTfIdfs(Vector document, int n, TIntSet retain) {
+        TopScores best = new TopScores(n);
 
         VectorIterator vIter = (document.toSparseVector()).nonZeroIterator();
         while (vIter.hasNext()) {
             double tfidf = vIter.next();
             if (retain.contains(vIter.index())) {
-                sortedTerms.add(new Pair<>(vIter.index(), tfidf));
+                best.add(vIter.index(), tfidf);
             }
         }
 
-        TIntList highestN = new TIntArrayList();
-        for (Pair<Integer, Double> pair : Iterables.limit(sortedTerms, n)) {
-            highestN.add(pair.getKey());
+        return new TIntArrayList(best.ids());
+    }
+
+    /**
+     * Get n highest tf-idf values from a row of the matrix, directly from
+     * the compressed row.
+     *
+     * @param row    The document index
+     * @param best   Collects the best terms, cleared first
+     * @param retain Terms to retain
+     * @return The term indices, highest tf-idf first
+     */
+    private TIntList nHighestTfIdfs(int row, TopScores best, TIntSet retain) {
+        best.clear();
+        for (int pos = rows.rowStart(row); pos < rows.rowEnd(row); pos++) {
+            int term = rows.columnIndex(pos);
+            if (retain.contains(term)) {
+                best.add(term, rows.value(pos));
+            }
+        }
+
+        return new TIntArrayList(best.ids());
+    }
+
+    /**
+     * Get n highest tf-idf values from each document of a cluster.
+     *
+     * @param cluster The document indices
+     * @param n       The number of most relevant terms
+     * @param retain  Terms to retain
+     * @return The term indices of each document, highest tf-idf first
+     */
+    public List<TIntList> nHighestTfIdfs(TIntList cluster, int n, TIntSet retain) {
+        TopScores best = new TopScores(n);
+        List<TIntList> highestN = new ArrayList<>(cluster.size());
+        for (int i = 0; i < cluster.size(); i++) {
+            highestN.add(nHighestTfIdfs(cluster.get(i), best, retain));
         }
 
         return highestN;
@@ -162,16 +432,40 @@ public class TermDocumentMatrix {
      * @param sharedTerms Token indices of terms shared by docs in a cluster
      * @return The most relevant terms
      */
-    public List<String> nMostRelevantTerms(SparseVector document, Integer n, BiMap<String, Integer> tokenIndices, TIntSet sharedTerms) {
-        TIntList idxs = nHighestTfIdfs(document, n, sharedTerms);
-        List<String> terms = new ArrayList<>();
+    public List<String> nMostRelevantTerms(SparseVector document, Integer n, StringIndex tokenIndices, TIntSet sharedTerms) {
+        List<String> terms = toTerms(nHighestTfIdfs(document, n, sharedTerms), tokenIndices);
 
-        for (int i = 0; i < idxs.size(); i++) {
-            terms.add(tokenIndices.inverse().get(idxs.get(i)));
+        System.out.println(terms);
+
+        return terms;
+    }
+
+    /**
+     * Get the most relevant terms of each document of a cluster, see
+     * nMostRelevantTerms(SparseVector, Integer, StringIndex, TIntSet).
+     *
+     * @param cluster      The document indices
+     * @param n            The number of most relevant terms
+     * @param tokenIndices The indices assigned to the vocabulary
+     * @param sharedTerms Token indices of terms shared by docs in a cluster
+     * @return The most relevant terms of each document
+     */
+    public List<List<String>> nMostRelevantTerms(TIntList cluster, int n, StringIndex tokenIndices, TIntSet sharedTerms) {
+        List<List<String>> clusterTerms = new ArrayList<>(cluster.size());
+        for (TIntList idxs : nHighestTfIdfs(cluster, n, sharedTerms)) {
+            List<String> terms = toTerms(idxs, tokenIndices);
+            System.out.println(terms);
+            clusterTerms.add(terms);
         }
 
-        System.out.println(terms);
+        return clusterTerms;
+    }
 
+    private static List<String> toTerms(TIntList idxs, StringIndex tokenIndices) {
+        List<String> terms = new ArrayList<>(idxs.size());
+        for (int i = 0; i < idxs.size(); i++) {
+            terms.add(tokenIndices.string(idxs.get(i)));
+        }
         return terms;
     }
 
@@ -187,12 +481,12 @@ public class TermDocumentMatrix {
         TIntSet shared = null;
 
         for (int i = 0; i < cluster.size(); i++) {
-            SparseVector row = counts.getRow(cluster.get(i)).toSparseVector();
+            int row = cluster.get(i);
             TIntSet docTermSet = new TIntHashSet();
-            VectorIterator termIter = row.nonZeroIterator();
-            while (termIter.hasNext()) {
-                termIter.next();
-                docTermSet.add(termIter.index());
+            for (int pos = rows.rowStart(row); pos < rows.rowEnd(row); pos++) {
+                if (rows.value(pos) != 0) {
+                    docTermSet.add(rows.columnIndex(pos));
+                }
             }
 
             if (i == 0) {
@@ -205,34 +499,57 @@ public class TermDocumentMatrix {
         return shared;
     }
     
+    /**
+     * Collect the words which are shared by at least a ratio of the documents
+     * from a cluster. Use termSupports() for several ratios.
+     *
+     * @param cluster The row idxs of the vectors
+     * @param ratio   The minimum fraction of documents containing a word
+     * @return Token indices of the words
+     */
     public TIntSet partiallySharedTerms(TIntList cluster, double ratio) {
-        TIntSet partShared = new TIntHashSet();        
-        TIntList terms = new TIntArrayList();
-        TIntList freqs = new TIntArrayList();
-        
+        return termSupports(cluster).sharedTerms(ratio);
+    }
+
+    /**
+     * Count the documents from a cluster containing each word. The counts are
+     * kept in an array over the vocabulary that is reused between the clusters
+     * of a thread, only the entries of the words of the cluster are touched,
+     * so the time is linear in the number of non-zeros of the cluster. Several
+     * threads can count the supports of clusters concurrently.
+     *
+     * @param cluster The row idxs of the vectors
+     * @return The supports of the words of the cluster
+     */
+    public TermSupports termSupports(TIntList cluster) {
+        int[] termCounts = this.termCounts.get();
+        if (termCounts.length < rows.columns()) {
+            termCounts = new int[rows.columns()];
+            this.termCounts.set(termCounts);
+        }
+
+        TIntList clusterTerms = new TIntArrayList();
         for (int i = 0; i < cluster.size(); i++) {
-            SparseVector row = counts.getRow(cluster.get(i)).toSparseVector();
-            VectorIterator termIter = row.nonZeroIterator();
-            while (termIter.hasNext()) {
-                termIter.next();
-                int termId = termIter.index();
-                int idx = terms.binarySearch(termId);
-                if (idx < 0) {
-                    terms.add(termId);
-                    freqs.add(1);
+            int row = cluster.get(i);
+            for (int pos = rows.rowStart(row); pos < rows.rowEnd(row); pos++) {
+                if (rows.value(pos) == 0) {
+                    continue;
                 }
-                else {
-                    freqs.set(idx, freqs.get(idx)+1);
+                int term = rows.columnIndex(pos);
+                if (termCounts[term]++ == 0) {
+                    clusterTerms.add(term);
                 }
             }
         }
-        
-        for (int j = 0; j < terms.size(); j++) {
-            if (freqs.get(j) >= cluster.size()*ratio) {
-                partShared.add(terms.get(j));
-            }
+
+        clusterTerms.sort();
+        int[] terms = clusterTerms.toArray();
+        int[] supports = new int[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            supports[i] = termCounts[terms[i]];
+            termCounts[terms[i]] = 0;
         }
-        
-        return partShared;
+
+        return new TermSupports(cluster.size(), terms, supports);
     }
 }
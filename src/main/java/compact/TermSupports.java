@@ -0,0 +1,74 @@
+package compact;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * The support of the terms of a cluster: the number of documents of the
+ * cluster that contain each term. Computed once per cluster, so that the
+ * terms shared by different ratios of the documents can be looked up
+ * without going over the documents again.
+ *
+ * @author Patricia Fischer
+ */
+public class TermSupports {
+
+    private final int numOfDocuments;
+
+    private final int[] terms;  // sorted
+
+    private final int[] supports;
+
+    TermSupports(int numOfDocuments, int[] terms, int[] supports) {
+        this.numOfDocuments = numOfDocuments;
+        this.terms = terms;
+        this.supports = supports;
+    }
+
+    /**
+     * @return The number of documents of the cluster
+     */
+    public int numOfDocuments() {
+        return numOfDocuments;
+    }
+
+    /**
+     * @return The number of different terms of the cluster
+     */
+    public int size() {
+        return terms.length;
+    }
+
+    /**
+     * @param i The index of the term, 0 &lt;= i &lt; size()
+     * @return The token index of the term, in increasing order of i
+     */
+    public int term(int i) {
+        return terms[i];
+    }
+
+    /**
+     * @param i The index of the term, 0 &lt;= i &lt; size()
+     * @return The number of documents of the cluster containing the term
+     */
+    public int support(int i) {
+        return supports[i];
+    }
+
+    /**
+     * Collect the terms which are contained in at least a ratio of the
+     * documents of the cluster.
+     *
+     * @param ratio The minimum fraction of documents containing a term
+     * @return Token indices of the terms
+     */
+    public TIntSet sharedTerms(double ratio) {
+        TIntSet shared = new TIntHashSet();
+        for (int i = 0; i < terms.length; i++) {
+            if (supports[i] >= numOfDocuments * ratio) {
+                shared.add(terms[i]);
+            }
+        }
+        return shared;
+    }
+}
@@ -0,0 +1,144 @@
+package compact;
+
+import java.util.Arrays;
+
+/**
+ * The n best (id, score) pairs of a stream of pairs: a higher score is
+ * better, of equal scores the lower id is better. Scores are compared with
+ * Double.compare(). Same ordering as BestN with a score comparator, but
+ * the pairs are kept in primitive arrays as a heap with the worst pair on
+ * top, so adding a pair takes O(log n) and does not allocate.
+ *
+ * @author Patricia Fischer
+ */
+public class TopScores {
+
+    private final int n;
+
+    private final int[] ids;
+
+    private final double[] scores;
+
+    private int size;
+
+    public TopScores(int n) {
+        this.n = n;
+        this.ids = new int[n];
+        this.scores = new double[n];
+    }
+
+    /**
+     * Add a pair, it is kept when it is among the n best pairs so far.
+     *
+     * @return True if the pair was kept
+     */
+    public boolean add(int id, double score) {
+        if (size < n) {
+            int i = size++;
+            // Sift up: move better parents down
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!worse(id, score, ids[parent], scores[parent])) {
+                    break;
+                }
+                ids[i] = ids[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            scores[i] = score;
+            return true;
+        }
+
+        if (n == 0 || !worse(ids[0], scores[0], id, score)) {
+            return false;
+        }
+
+        // Replace the worst pair
+        ids[0] = id;
+        scores[0] = score;
+        siftDown(ids, scores, size);
+        return true;
+    }
+
+    /**
+     * @return The number of pairs kept, at most n
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all pairs, so that the instance can be reused.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return The ids of the pairs, best first
+     */
+    public int[] ids() {
+        int[] sortedIds = new int[size];
+        sort(sortedIds, new double[size]);
+        return sortedIds;
+    }
+
+    /**
+     * @return The scores of the pairs, best first
+     */
+    public double[] scores() {
+        double[] sortedScores = new double[size];
+        sort(new int[size], sortedScores);
+        return sortedScores;
+    }
+
+    /**
+     * Copy the pairs best first, by taking the worst pair off a copy of the heap until it is empty.
+     */
+    private void sort(int[] sortedIds, double[] sortedScores) {
+        int[] heapIds = Arrays.copyOf(ids, size);
+        double[] heapScores = Arrays.copyOf(scores, size);
+        for (int last = size - 1; last >= 0; last--) {
+            sortedIds[last] = heapIds[0];
+            sortedScores[last] = heapScores[0];
+            heapIds[0] = heapIds[last];
+            heapScores[0] = heapScores[last];
+            siftDown(heapIds, heapScores, last);
+        }
+    }
+
+    /**
+     * Move the pair on top of the heap down to its place: move worse children up.
+     */
+    private static void siftDown(int[] ids, double[] scores, int size) {
+        int id = ids[0];
+        double score = scores[0];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && worse(ids[child + 1], scores[child + 1], ids[child], scores[child])) {
+                child++;
+            }
+            if (!worse(ids[child], scores[child], id, score)) {
+                break;
+            }
+            ids[i] = ids[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        ids[i] = id;
+        scores[i] = score;
+    }
+
+    /**
+     * @return True if pair 1 is worse than pair 2
+     */
+    private static boolean worse(int id1, double score1, int id2, double score2) {
+        int cmp = Double.compare(score1, score2);
+        return cmp < 0 || (cmp == 0 && id1 > id2);
+    }
+}
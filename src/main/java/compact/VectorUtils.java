@@ -0,0 +1,124 @@
+package compact;
+
+/**
+ * Kernels for sparse document rows and dense vectors.
+ *
+ * @author Patricia Fischer
+ */
+public class VectorUtils {
+
+    private VectorUtils() {
+    }
+
+    /**
+     * @return The inverse euclidean norm of each row, 0 for empty rows
+     */
+    public static double[] inverseNorms(SparseRows rows) {
+        double[] inverseNorms = new double[rows.rows()];
+        RowBuffer buffer = new RowBuffer();
+        for (int row = 0; row < rows.rows(); row++) {
+            rows.copyRow(row, buffer);
+            inverseNorms[row] = inverseNorm(buffer);
+        }
+        return inverseNorms;
+    }
+
+    /**
+     * @return The inverse euclidean norm of a buffered row, 0 for an empty row
+     */
+    public static double inverseNorm(RowBuffer row) {
+        double[] values = row.values();
+        double sum = 0;
+        for (int i = 0; i < row.size(); i++) {
+            sum += values[i] * values[i];
+        }
+        return sum > 0 ? 1 / Math.sqrt(sum) : 0;
+    }
+
+    /**
+     * @return The inverse euclidean norm of a row, 0 for an empty row
+     */
+    public static double inverseNorm(SparseRows rows, int row) {
+        double sum = 0;
+        for (int pos = rows.rowStart(row); pos < rows.rowEnd(row); pos++) {
+            sum += rows.value(pos) * rows.value(pos);
+        }
+        return sum > 0 ? 1 / Math.sqrt(sum) : 0;
+    }
+
+    /**
+     * @return The dot product of a sparse row and a dense vector
+     */
+    public static double dotProduct(SparseRows rows, int row, double[] vector) {
+        double dotProduct = 0;
+        for (int pos = rows.rowStart(row); pos < rows.rowEnd(row); pos++) {
+            dotProduct += rows.value(pos) * vector[rows.columnIndex(pos)];
+        }
+        return dotProduct;
+    }
+
+    /**
+     * @return The dot product of a buffered row and a dense vector
+     */
+    public static double dotProduct(RowBuffer row, double[] vector) {
+        int[] columns = row.columns();
+        double[] values = row.values();
+        double dotProduct = 0;
+        for (int i = 0; i < row.size(); i++) {
+            dotProduct += values[i] * vector[columns[i]];
+        }
+        return dotProduct;
+    }
+
+    /**
+     * @return The dot product of two sparse rows, merging their sorted column indices
+     */
+    public static double dotProduct(SparseRows rows1, int row1, SparseRows rows2, int row2) {
+        int pos1 = rows1.rowStart(row1);
+        int end1 = rows1.rowEnd(row1);
+        int pos2 = rows2.rowStart(row2);
+        int end2 = rows2.rowEnd(row2);
+
+        double dotProduct = 0;
+        while (pos1 < end1 && pos2 < end2) {
+            int column1 = rows1.columnIndex(pos1);
+            int column2 = rows2.columnIndex(pos2);
+            if (column1 < column2) {
+                pos1++;
+            } else if (column1 > column2) {
+                pos2++;
+            } else {
+                dotProduct += rows1.value(pos1++) * rows2.value(pos2++);
+            }
+        }
+        return dotProduct;
+    }
+
+    /**
+     * Add a scaled sparse row to a dense vector.
+     */
+    public static void addTo(double[] vector, SparseRows rows, int row, double scale) {
+        for (int pos = rows.rowStart(row); pos < rows.rowEnd(row); pos++) {
+            vector[rows.columnIndex(pos)] += rows.value(pos) * scale;
+        }
+    }
+
+    /**
+     * Add a scaled buffered row to a dense vector.
+     */
+    public static void addTo(double[] vector, RowBuffer row, double scale) {
+        int[] columns = row.columns();
+        double[] values = row.values();
+        for (int i = 0; i < row.size(); i++) {
+            vector[columns[i]] += values[i] * scale;
+        }
+    }
+
+    public static double norm(double[] v) {
+        double sum = 0;
+        for (double value : v) {
+            sum += value * value;
+        }
+        return Math.sqrt(sum);
+    }
+}
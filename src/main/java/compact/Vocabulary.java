@@ -1,7 +1,5 @@
 package compact;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import java.io.IOException;
@@ -28,9 +26,9 @@ import java.util.Map;
  */
 public class Vocabulary {
     
-    private final BiMap<String, Integer> documentIndices;
+    private final StringIndex documentIndices;
     
-    private final BiMap<String, Integer> tokenIndices;
+    private final StringIndex tokenIndices;
     
     private final TIntList tokenCounts;  //for getting the most frequent tokens/ stopwords
     
@@ -39,13 +37,44 @@ public class Vocabulary {
     private final Map<Integer, Date> dateIds;
 
     public Vocabulary() {
-        documentIndices = HashBiMap.create();
-        tokenIndices = HashBiMap.create();
+        documentIndices = new StringIndex();
+        tokenIndices = new StringIndex();
         tokenCounts = new TIntArrayList();
         documentFrequencies = new TIntArrayList();
         dateIds = new HashMap();
     }
 
+    /**
+     * Restore a stored vocabulary, e.g. to extend it with new sections.
+     */
+    Vocabulary(StringIndex documentIndices, StringIndex tokenIndices, TIntList tokenCounts,
+               TIntList documentFrequencies, Map<Integer, Date> dateIds) {
+        this.documentIndices = documentIndices;
+        this.tokenIndices = tokenIndices;
+        this.tokenCounts = tokenCounts;
+        this.documentFrequencies = documentFrequencies;
+        this.dateIds = dateIds;
+    }
+
+    /**
+     * Reset the vocabulary to an earlier state, e.g. to the last commit of a
+     * CorpusIndex when an update failed. Documents and tokens that were added
+     * since are removed.
+     *
+     * @param numOfDocuments      The number of documents to keep
+     * @param tokenCounts         The token counts of the earlier state, one per token to keep
+     * @param documentFrequencies The document frequencies of the earlier state
+     */
+    void truncate(int numOfDocuments, TIntList tokenCounts, TIntList documentFrequencies) {
+        documentIndices.truncate(numOfDocuments);
+        tokenIndices.truncate(tokenCounts.size());
+        this.tokenCounts.clear();
+        this.tokenCounts.addAll(tokenCounts);
+        this.documentFrequencies.clear();
+        this.documentFrequencies.addAll(documentFrequencies);
+        dateIds.keySet().removeIf(doc -> doc >= numOfDocuments);
+    }
+
     /**
      * Process content of each debate section and save file ID.
      * 
@@ -68,10 +97,9 @@ public class Vocabulary {
         for (Map.Entry<String, Integer> entry : wordFrequencies.entrySet()) {
             String token = entry.getKey();
             Integer frequency = entry.getValue();
-            Integer index = tokenIndices.get(token);
-            if (index == null) {
-                index = tokenIndices.size();
-                tokenIndices.put(token, index);
+            int index = tokenIndices.index(token);
+            if (index < 0) {
+                index = tokenIndices.add(token);
                 tokenCounts.add(frequency);
             }
             else {
@@ -98,14 +126,14 @@ public class Vocabulary {
         if (documentIndices == null) {
             return;
         }
-        documentIndices.putIfAbsent(sectionID, documentIndices.size());
+        documentIndices.add(sectionID);
     }
 
     /**
      *
      * @return The file IDs and their associated indices
      */
-    public BiMap<String, Integer> documentIndices() {
+    public StringIndex documentIndices() {
         return documentIndices;
     }
 
@@ -113,7 +141,7 @@ public class Vocabulary {
      *
      * @return The tokens and their associated indices
      */
-    public BiMap<String, Integer> tokenIndices() {
+    public StringIndex tokenIndices() {
         return tokenIndices;
     }
     
@@ -150,10 +178,10 @@ public class Vocabulary {
      */
    public void extractDocumentDates(Map<String, List<String>> metadata) {
        
-       BiMap<Integer, String> docsByIdx = documentIndices.inverse();
-       
-       for (int i = 0; i < docsByIdx.size(); i++) {
-           dateIds.putIfAbsent(i, stringToDate(metadata.get(docsByIdx.get(i)).get(0)));  // get date from metadata
+       for (int i = 0; i < documentIndices.size(); i++) {
+           if (!dateIds.containsKey(i)) {  // documents of an earlier update are not in the metadata
+               dateIds.put(i, stringToDate(metadata.get(documentIndices.string(i)).get(0)));  // get date from metadata
+           }
        }
    }
    
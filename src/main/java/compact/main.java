@@ -1,12 +1,10 @@
 package compact;
 
 import com.carrotsearch.hppc.BitSet;
-import com.google.common.collect.BiMap;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.set.TIntSet;
 import org.apache.commons.math3.random.MersenneTwister;
-import org.la4j.Vector;
 import org.la4j.vector.SparseVector;
 
 import java.io.File;
@@ -46,19 +44,20 @@ public class main {
         //directory = new File("/home/patricia/Dokumente/Bachelorarbeit/Corpora/bundesparser-conll-xml-sample/");
         //directory = new File("/home/patricia/Dokumente/Bachelorarbeit/Corpora/bundesparser-conll-xml-minisample/");
 
-        if (args.length != 3) {
-            System.err.println("Wrong number of arguments.Usage: 3, provide name of dataset (Polmine/Taz), path to data files and path for storage");
+        if (args.length != 3 && args.length != 4) {
+            System.err.println("Wrong number of arguments.Usage: 3, provide name of dataset (Polmine/Taz), path to data files and path for storage, optionally the number of threads");
         }
 
         corpus = args[0].toLowerCase();
         directory = new File(args[1]);
         storageDirectory = args[2];
+        int numOfThreads = args.length > 3 ? Integer.parseInt(args[3]) : 1; // 1: read files and cluster sequentially
 
         ///*-->
-        MatrixBuilder mb = new MatrixBuilder();
-        Vocabulary vocabulary = mb.buildVocabulary(corpus, directory);
-        TermDocumentMatrix tdm = mb.buildMatrix(corpus, directory, vocabulary); // creates term-doc matrix, returns tf-idf matrix
-        BiMap<Integer, String> documentIndicesInverted = vocabulary.documentIndices().inverse(); //doc id <-> doc name
+        MatrixBuilder mb = new MatrixBuilder(numOfThreads);
+        Vocabulary vocabulary = new Vocabulary();
+        TermDocumentMatrix tdm = mb.build(corpus, directory, vocabulary); // reads corpus once, returns tf-idf matrix
+        StringIndex documentIndices = vocabulary.documentIndices(); //doc id <-> doc name
         //-->*/
 
         //tdm.svd();
@@ -68,8 +67,11 @@ public class main {
         System.out.println("_________________________");
         System.out.println("Retrieving k-means clusters");
         System.out.println("_________________________");
-        KMeansClustering kmc = new KMeansClustering(NUM_OF_CLUSTERS, tdm.counts(), new Random());
-        List<Vector> centroids = kmc.centroids();
+        KMeansClustering kmc = new KMeansClustering(NUM_OF_CLUSTERS, tdm.sparseRows(), new Random(), numOfThreads);
+        kmc.setIterationListener(new PrintingListener("cosine similarity", "cosine similarities"));
+        kmc.setAlgorithm(KMeansClustering.Algorithm.HAMERLY); // same clusters, skips most comparisons for many clusters
+        kmc.setSeeding(Seeding.KMEANS_PLUS_PLUS); // KMEANS_PARALLEL for many clusters
+        double[][] centroids = kmc.centroids();
         
         List<TIntList> clusters = kmc.clusters(centroids);
         for (TIntList cluster : clusters) {
@@ -78,48 +80,41 @@ public class main {
             }
             else {
                 // Earliest doc in cluster
-                System.out.println(documentIndicesInverted.get(earliestDoc(vocabulary.documentDates(), cluster)));
+                System.out.println(documentIndices.string(earliestDoc(vocabulary.documentDates(), cluster)));
 
 
                 ratio = 0.3;
                 System.out.printf("--%f ratio--", ratio);
                 //TIntSet sharedTerms = tdm.sharedTerms(cluster);
-                TIntSet sharedTerms = tdm.partiallySharedTerms(cluster, ratio);
+                TermSupports termSupports = tdm.termSupports(cluster);
+                TIntSet sharedTerms = termSupports.sharedTerms(ratio);
 
                 System.out.println(cluster);
-                for (Integer c : cluster.toArray()) {
-                    tdm.nMostRelevantTerms(tdm.counts().getRow(c).toSparseVector(), 10, vocabulary.tokenIndices(), sharedTerms);
-                }
+                tdm.nMostRelevantTerms(cluster, 10, vocabulary.tokenIndices(), sharedTerms);
 
 
                 ratio = 0.5;
                 System.out.printf("--%f ratio--\n", ratio);
-                sharedTerms = tdm.partiallySharedTerms(cluster, ratio);
+                sharedTerms = termSupports.sharedTerms(ratio);
 
                 System.out.println(cluster);
-                for (Integer c : cluster.toArray()) {
-                    tdm.nMostRelevantTerms(tdm.counts().getRow(c).toSparseVector(), 10, vocabulary.tokenIndices(), sharedTerms);
-                }
+                tdm.nMostRelevantTerms(cluster, 10, vocabulary.tokenIndices(), sharedTerms);
 
 
                 ratio = 0.7;
                 System.out.printf("--%f ratio--\n", ratio);
-                sharedTerms = tdm.partiallySharedTerms(cluster, ratio);
+                sharedTerms = termSupports.sharedTerms(ratio);
 
                 System.out.println(cluster);
-                for (Integer c : cluster.toArray()) {
-                    tdm.nMostRelevantTerms(tdm.counts().getRow(c).toSparseVector(), 10, vocabulary.tokenIndices(), sharedTerms);
-                }
+                tdm.nMostRelevantTerms(cluster, 10, vocabulary.tokenIndices(), sharedTerms);
 
 
                 ratio = 1.0;
                 System.out.printf("--%f ratio--\n", ratio);
-                sharedTerms = tdm.partiallySharedTerms(cluster, ratio);
+                sharedTerms = termSupports.sharedTerms(ratio);
 
                 System.out.println(cluster);
-                for (Integer c : cluster.toArray()) {
-                    tdm.nMostRelevantTerms(tdm.counts().getRow(c).toSparseVector(), 10, vocabulary.tokenIndices(), sharedTerms);
-                }
+                tdm.nMostRelevantTerms(cluster, 10, vocabulary.tokenIndices(), sharedTerms);
             }
             System.out.println();
         }
@@ -130,26 +125,45 @@ public class main {
 
         //Serialize/deserialize
 
-        List<MatrixValue> countValues = new ArrayList<>();
-        List<List<MatrixValue>> centroidValues = new ArrayList<>();
-        StorageInformation info = new StorageInformation(countValues, tdm.counts().rows(), tdm.counts().columns(),
-                centroidValues, vocabulary.documentIndices(), vocabulary.tokenIndices(), vocabulary.documentDates());
+        File storageFile = new File(storageDirectory, "storage.bin");
+        BinaryStorage.write(storageFile, tdm.sparseRows(), vocabulary.documentIndices(), vocabulary.tokenIndices(),
+                vocabulary.documentDates(), centroids);
 
-        info.matrixToSerializable(tdm.counts());
-        info.centroidsToSerializable(centroids);
+        BinaryStorage info = BinaryStorage.read(storageFile);
+        System.out.println("TFIDF   Rows/#docs: "+info.getRows().rows()+", columns/#words: "+info.getRows().columns());
+        System.out.println("CENTROIDS   Rows/#centroids: "+info.getCentroids().length+", columns/#words: "+info.getCentroids()[0].length);
+        System.out.println("First doc date: "+info.getDocumentDates().get(0));
+        System.out.println("First doc filename: "+info.getDocumentIndices().string(0));
 
-        Storage store = new Storage(storageDirectory);
-        store.setStorageInfo(info);
-        store.serialize();
+        */
 
-        store.deserialize();
+        /*
 
-        info.serializableToMatrix();
-        info.serializableToCentroids();;
-        System.out.println("TFIDF   Rows/#docs: "+info.getCountsMatrix().rows()+", columns/#words: "+info.getCountsMatrix().columns());
-        System.out.println("CENTROIDS   Rows/#centroids: "+info.getCentroids().size()+", columns/#words: "+info.getCentroids().get(0).length());
-        System.out.println("First doc date: "+info.getDocumentDates().get(0));
-        System.out.println("First doc filename: "+info.getDocumentIndices().inverse().get(0));
+        //Incremental update, reads only the files that are not in the index yet
+
+        CorpusIndex corpusIndex = CorpusIndex.open(new File(storageDirectory, "index"));
+        mb.update(corpus, directory, corpusIndex);
+        TermDocumentMatrix updatedTdm = corpusIndex.termDocumentMatrix();
+        Vocabulary updatedVocabulary = corpusIndex.vocabulary();
+
+        // Query across all segments without loading them onto the heap
+        SegmentedRows segmentedRows = corpusIndex.rows();
+        HashedDocuments segmentedHashes = HashedDocuments.hash(updatedVocabulary.documentIndices(), segmentedRows,
+                new RandomProjectionHash(new MersenneTwister(42), segmentedRows.columns(), NUM_OF_BITS), numOfThreads);
+        corpusIndex.close(); // waits for background merges
+
+        */
+
+        /*
+
+        //Mini-batch k-means, streaming the corpus instead of building the tf-idf matrix
+
+        Vocabulary streamVocabulary = new Vocabulary();
+        mb.buildVocabulary(corpus, directory, streamVocabulary);
+        MiniBatchKMeans miniBatch = new MiniBatchKMeans(NUM_OF_CLUSTERS, streamVocabulary.tokenIndices().size(), new Random(), numOfThreads);
+        mb.streamBatches(corpus, directory, streamVocabulary, 10000, new Random(), (sectionIDs, batch) ->
+                System.out.printf("Average cosine similarity of batch: %s%n", miniBatch.update(batch)));
+        double[][] miniBatchCentroids = miniBatch.centroids();
 
         */
 
@@ -161,16 +175,12 @@ public class main {
         RandomProjectionHash rph = new RandomProjectionHash(new MersenneTwister(42), vocabulary.tokenIndices().size(), NUM_OF_BITS); //bits: 1024
         //System.out.println("Vocab size: "+vocabulary.tokenIndices().size());
         //System.out.println("Matrix row length: "+tdm.counts().getRow(0).length());
-        List<BitSet> hashes = new ArrayList<>();
-        for (int i = 0; i < tdm.counts().rows(); i++) {
-            SparseVector row = tdm.counts().getRow(i).toSparseVector();
-            BitSet hash = rph.hashVector(row);
-            hashes.add(hash);
-        }
-        HashedDocuments hashedDocuments = new HashedDocuments(vocabulary.documentIndices(), hashes, NUM_OF_BITS);
+        HashedDocuments hashedDocuments = HashedDocuments.hash(vocabulary.documentIndices(), tdm.sparseRows(), rph, numOfThreads);
 
-        KMeansHashClustering hashClustering = new KMeansHashClustering(NUM_OF_CLUSTERS, hashedDocuments, new Random());
-        List<BitSet> bitCentroids = hashClustering.centroids();
+        KMeansHashClustering hashClustering = new KMeansHashClustering(NUM_OF_CLUSTERS, hashedDocuments, new Random(), numOfThreads);
+        hashClustering.setIterationListener(new PrintingListener("hammingDistance", "hamming distances (" + NUM_OF_BITS + " bits)"));
+        hashClustering.setSeeding(Seeding.KMEANS_PLUS_PLUS); // KMEANS_PARALLEL for many clusters
+        long[] bitCentroids = hashClustering.centroids();
 
         List<TIntList> bitClusters = hashClustering.clusters(bitCentroids);
         for (TIntList cluster : bitClusters) {
@@ -179,42 +189,35 @@ public class main {
             }
             else {
                 // Earliest doc in cluster
-                System.out.println(documentIndicesInverted.get(earliestDoc(vocabulary.documentDates(), cluster)));
+                System.out.println(documentIndices.string(earliestDoc(vocabulary.documentDates(), cluster)));
 
                 System.out.printf("--%f ratio--\n", ratio);
-                TIntSet sharedTerms = tdm.partiallySharedTerms(cluster, ratio);
+                TermSupports termSupports = tdm.termSupports(cluster);
+                TIntSet sharedTerms = termSupports.sharedTerms(ratio);
 
                 System.out.println(cluster);
-                for (Integer c : cluster.toArray()) {
-                    tdm.nMostRelevantTerms(tdm.counts().getRow(c).toSparseVector(), 10, vocabulary.tokenIndices(), sharedTerms);
-                }
+                tdm.nMostRelevantTerms(cluster, 10, vocabulary.tokenIndices(), sharedTerms);
 
                 ratio = 0.5;
                 System.out.printf("--%f ratio--\n", ratio);
-                sharedTerms = tdm.partiallySharedTerms(cluster, ratio);
+                sharedTerms = termSupports.sharedTerms(ratio);
 
                 System.out.println(cluster);
-                for (Integer c : cluster.toArray()) {
-                    tdm.nMostRelevantTerms(tdm.counts().getRow(c).toSparseVector(), 10, vocabulary.tokenIndices(), sharedTerms);
-                }
+                tdm.nMostRelevantTerms(cluster, 10, vocabulary.tokenIndices(), sharedTerms);
 
                 ratio = 0.7;
                 System.out.printf("--%f ratio--\n", ratio);
-                sharedTerms = tdm.partiallySharedTerms(cluster, ratio);
+                sharedTerms = termSupports.sharedTerms(ratio);
 
                 System.out.println(cluster);
-                for (Integer c : cluster.toArray()) {
-                    tdm.nMostRelevantTerms(tdm.counts().getRow(c).toSparseVector(), 10, vocabulary.tokenIndices(), sharedTerms);
-                }
+                tdm.nMostRelevantTerms(cluster, 10, vocabulary.tokenIndices(), sharedTerms);
 
                 ratio = 1.0;
                 System.out.printf("--%f ratio--\n", ratio);
-                sharedTerms = tdm.partiallySharedTerms(cluster, ratio);
+                sharedTerms = termSupports.sharedTerms(ratio);
 
                 System.out.println(cluster);
-                for (Integer c : cluster.toArray()) {
-                    tdm.nMostRelevantTerms(tdm.counts().getRow(c).toSparseVector(), 10, vocabulary.tokenIndices(), sharedTerms);
-                }
+                tdm.nMostRelevantTerms(cluster, 10, vocabulary.tokenIndices(), sharedTerms);
             }
             System.out.println();
         }
@@ -222,6 +225,21 @@ public class main {
 
         //-->*/
 
+        /*
+
+        //Online assignment of new sections to the clusters, without clustering again
+
+        SectionVectorizer frozenVectorizer = new SectionVectorizer(vocabulary.tokenIndices(),
+                vocabulary.documentFrequencies(), vocabulary.documentIndices().size());
+        new ClusterAssigner(frozenVectorizer, rph, bitCentroids).write(new File(storageDirectory, "assigner.bin"));
+
+        ClusterAssigner assigner = ClusterAssigner.read(new File(storageDirectory, "assigner.bin"));
+        List<File> newFiles = ReaderUtils.getFiles(corpus, directory, ReaderUtils.getExtension(corpus));
+        new CorpusReader(corpus, Layer.LEMMA, 1).read(newFiles, (sectionID, wordFrequencies) ->
+                System.out.printf("%s: %s%n", sectionID, assigner.assign(wordFrequencies)));
+
+        */
+
         /*
         TIntList numsOfBits = new TIntArrayList();
         numsOfBits.add(128);
@@ -234,39 +252,29 @@ public class main {
         for (int bits : numsOfBits.toArray()) {
             System.out.printf("Number of bits: %d\n", bits);
             RandomProjectionHash rph = new RandomProjectionHash(new MersenneTwister(42), vocabulary.tokenIndices().size(), bits); //bits: 1024
-            List<BitSet> hashes = new ArrayList<>();
-            for (int i = 0; i < tdm.counts().rows(); i++) {
-                SparseVector row = tdm.counts().getRow(i).toSparseVector();
-                BitSet hash = rph.hashVector(row);
-                hashes.add(hash);
-            }
-            HashedDocuments hashedDocuments = new HashedDocuments(vocabulary.documentIndices(), hashes, bits);
+            HashedDocuments hashedDocuments = HashedDocuments.hash(vocabulary.documentIndices(), tdm.sparseRows(), rph, numOfThreads);
             getBestHammingDistance(tdm.counts(), hashedDocuments.getDocumentHashes());
         }
 
         */
 
 /*
-        //Remainder of main() is meant for deserializing information from existing storage.ser
-        Storage store = new Storage(storageDirectory);
-        store.deserialize();
-        StorageInformation info = store.getStorageInfo();
-        info.serializableToMatrix();
-        info.serializableToCentroids();
+        //Remainder of main() is meant for reading information from an existing storage.bin
+        //The matrix is memory-mapped read-only, use BinaryStorage.read() to load it onto the heap
+        BinaryStorage info = BinaryStorage.map(new File(storageDirectory, "storage.bin"));
 
         Map<Integer, Date> documentDates = info.getDocumentDates();
 
-        BiMap<String, Integer> tokenIndices = info.getTokenIndices();
+        StringIndex tokenIndices = info.getTokenIndices();
 
-        BiMap<String, Integer> documentIndices = info.getDocumentIndices();
-        BiMap<Integer, String> documentIndicesInverted = documentIndices.inverse();
+        StringIndex documentIndices = info.getDocumentIndices();
 
         TermDocumentMatrix tdm = new TermDocumentMatrix(documentIndices, tokenIndices);
-        tdm.setCounts(info.getCountsMatrix());
+        tdm.setRows(info.getRows());
 
-        List<Vector> centroids = info.getCentroids();
+        double[][] centroids = info.getCentroids();
 
-        KMeansClustering kmc = new KMeansClustering(NUM_OF_CLUSTERS, tdm.counts(), new Random());
+        KMeansClustering kmc = new KMeansClustering(NUM_OF_CLUSTERS, tdm.sparseRows(), new Random(), numOfThreads);
         List<TIntList> clusters = kmc.clusters(centroids);
         for (TIntList cluster : clusters) {
             if (cluster.isEmpty()) {
@@ -274,50 +282,70 @@ public class main {
             }
             else {
                 // Earliest doc in cluster
-                System.out.println(documentIndicesInverted.get(kmc.earliestDoc(documentDates, cluster)));
+                System.out.println(documentIndices.string(kmc.earliestDoc(documentDates, cluster)));
 
 
                 System.out.printf("--ratio %f--\n",ratio);
-                TIntSet sharedTerms = tdm.partiallySharedTerms(cluster, ratio);
+                TermSupports termSupports = tdm.termSupports(cluster);
+                TIntSet sharedTerms = termSupports.sharedTerms(ratio);
 
                 System.out.println(cluster);
-                for (Integer c : cluster.toArray()) {
-                    tdm.nMostRelevantTerms(tdm.counts().getRow(c).toSparseVector(), 10, tokenIndices, sharedTerms);
-                }
+                tdm.nMostRelevantTerms(cluster, 10, tokenIndices, sharedTerms);
 
 
                 ratio = 0.5;
                 System.out.printf("--ratio %f--\n",ratio);
-                sharedTerms = tdm.partiallySharedTerms(cluster, ratio);
+                sharedTerms = termSupports.sharedTerms(ratio);
 
                 System.out.println(cluster);
-                for (Integer c : cluster.toArray()) {
-                    tdm.nMostRelevantTerms(tdm.counts().getRow(c).toSparseVector(), 10, tokenIndices, sharedTerms);
-                }
+                tdm.nMostRelevantTerms(cluster, 10, tokenIndices, sharedTerms);
 
 
                 ratio = 0.7;
                 System.out.printf("--ratio %f--\n",ratio);
-                sharedTerms = tdm.partiallySharedTerms(cluster, ratio);
+                sharedTerms = termSupports.sharedTerms(ratio);
 
                 System.out.println(cluster);
-                for (Integer c : cluster.toArray()) {
-                    tdm.nMostRelevantTerms(tdm.counts().getRow(c).toSparseVector(), 10, tokenIndices, sharedTerms);
-                }
+                tdm.nMostRelevantTerms(cluster, 10, tokenIndices, sharedTerms);
 
 
                 ratio = 1.0;
                 System.out.printf("--ratio %f--\n",ratio);
-                sharedTerms = tdm.partiallySharedTerms(cluster, ratio);
+                sharedTerms = termSupports.sharedTerms(ratio);
 
                 System.out.println(cluster);
-                for (Integer c : cluster.toArray()) {
-                    tdm.nMostRelevantTerms(tdm.counts().getRow(c).toSparseVector(), 10, tokenIndices, sharedTerms);
-                }
+                tdm.nMostRelevantTerms(cluster, 10, tokenIndices, sharedTerms);
             }
             System.out.println();
         }
 */
     }
-    
+
+    /**
+     * Prints the average objective of each k-means iteration, and the
+     * objectives of the single documents after the last iteration.
+     */
+    private static class PrintingListener implements IterationListener {
+        private final String objective;
+        private final String objectives;
+
+        private PrintingListener(String objective, String objectives) {
+            this.objective = objective;
+            this.objectives = objectives;
+        }
+
+        @Override
+        public void iteration(int iteration, double average, int reassigned) {
+            System.out.printf("Average %s %s: %s (%d documents reassigned)%n", objective, iteration, average, reassigned);
+        }
+
+        @Override
+        public void finished(int iterations, double[] values) {
+            System.out.println("Single " + objectives + ":");
+            for (double value : values) {
+                System.out.println(value);
+            }
+            System.out.println();
+        }
+    }
 }
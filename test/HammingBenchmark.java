@@ -0,0 +1,110 @@
+package compact;
+
+import com.carrotsearch.hppc.BitSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compare the throughput of the Hamming distance computation in the k-means
+ * assignment loop: cloning a BitSet per comparison (xor and cardinality)
+ * against popcount over the packed document and centroid hashes.
+ *
+ * Usage: HammingBenchmark [documents] [centroids] [bits]
+ *
+ * @author Patricia Fischer
+ */
+public class HammingBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int numOfDocs = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int numOfCentroids = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int bits = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        int words = (bits + 63) >>> 6;
+
+        Random random = new Random(42);
+        long[] documentHashes = randomHashes(random, numOfDocs, words);
+        long[] centroidHashes = randomHashes(random, numOfCentroids, words);
+
+        List<BitSet> documentBitSets = toBitSets(documentHashes, numOfDocs, words);
+        List<BitSet> centroidBitSets = toBitSets(centroidHashes, numOfCentroids, words);
+
+        long comparisons = (long) numOfDocs * numOfCentroids;
+        System.out.printf("%d documents x %d centroids, %d bits%n", numOfDocs, numOfCentroids, bits);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            long checksumBitSet = assignBitSets(documentBitSets, centroidBitSets);
+            long bitSetTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long checksumPacked = assignPacked(documentHashes, centroidHashes, numOfDocs, numOfCentroids, words);
+            long packedTime = System.nanoTime() - start;
+
+            if (checksumBitSet != checksumPacked) {
+                throw new IllegalStateException("Assignments differ");
+            }
+
+            System.out.printf("Round %d: BitSet clone/xor %.1f M comparisons/s, packed popcount %.1f M comparisons/s (%.1fx)%n",
+                    round + 1, comparisons * 1e3 / bitSetTime, comparisons * 1e3 / packedTime,
+                    bitSetTime / (double) packedTime);
+        }
+    }
+
+    private static long assignBitSets(List<BitSet> documents, List<BitSet> centroids) {
+        long checksum = 0;
+        for (BitSet document : documents) {
+            long minDistance = Long.MAX_VALUE;
+            int closest = 0;
+            for (int i = 0; i < centroids.size(); i++) {
+                BitSet hammingBits = (BitSet) document.clone();
+                hammingBits.xor(centroids.get(i));
+                long distance = hammingBits.cardinality();
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    closest = i;
+                }
+            }
+            checksum += closest;
+        }
+        return checksum;
+    }
+
+    private static long assignPacked(long[] documents, long[] centroids, int numOfDocs, int numOfCentroids, int words) {
+        long checksum = 0;
+        for (int row = 0; row < numOfDocs; row++) {
+            int minDistance = Integer.MAX_VALUE;
+            int closest = 0;
+            for (int i = 0; i < numOfCentroids; i++) {
+                int distance = HashedDocuments.distance(documents, row * words, centroids, i * words, words);
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    closest = i;
+                }
+            }
+            checksum += closest;
+        }
+        return checksum;
+    }
+
+    private static long[] randomHashes(Random random, int n, int words) {
+        long[] hashes = new long[n * words];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+        }
+        return hashes;
+    }
+
+    private static List<BitSet> toBitSets(long[] hashes, int n, int words) {
+        List<BitSet> bitSets = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            long[] bits = new long[words];
+            System.arraycopy(hashes, i * words, bits, 0, words);
+            bitSets.add(new BitSet(bits, words));
+        }
+        return bitSets;
+    }
+}